@@ -0,0 +1,74 @@
+package com.snakat.iap;
+
+import androidx.annotation.NonNull;
+
+import com.android.billingclient.api.Purchase;
+import com.android.billingclient.api.SkuDetails;
+
+import org.json.JSONException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Deterministic catalogs for the benchmarks. The same size always produces the same data, so
+ * results can be compared between commits.
+ */
+final class Catalogs {
+
+    static final int[] SIZES = {10, 100, 1000, 10000};
+
+    private Catalogs() {
+    }
+
+    @NonNull
+    static String sku(int index) {
+        return String.format(Locale.US, "com.snakat.iap.benchmark.sku_%05d", index);
+    }
+
+    @NonNull
+    static List<String> skus(int size) {
+        List<String> skus = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            skus.add(sku(i));
+        }
+        return skus;
+    }
+
+    @NonNull
+    static ProductList products(int size) {
+        ProductList products = new ProductList();
+        for (int i = 0; i < size; i++) {
+            products.add(new Product(sku(i), i % 2 == 0 ? Product.Type.ONE_TIME : Product.Type.CONSUMABLE));
+        }
+        return products;
+    }
+
+    @NonNull
+    static List<SkuDetails> skuDetails(int size, long priceMicros) throws JSONException {
+        List<SkuDetails> skuDetailsList = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            skuDetailsList.add(new SkuDetails(String.format(Locale.US,
+                    "{\"productId\":\"%s\",\"type\":\"inapp\",\"price\":\"$%.2f\",\"price_amount_micros\":%d," +
+                            "\"price_currency_code\":\"USD\",\"title\":\"Item %d\",\"description\":\"Item %d\"}",
+                    sku(i), priceMicros / 1e6, priceMicros, i, i)));
+        }
+        return skuDetailsList;
+    }
+
+    /**
+     * Returns purchases for every other SKU; {@code acknowledged} lets callers flip their state.
+     */
+    @NonNull
+    static List<Purchase> purchases(int size, boolean acknowledged) throws JSONException {
+        List<Purchase> purchases = new ArrayList<>(size / 2);
+        for (int i = 0; i < size; i += 2) {
+            purchases.add(new Purchase(String.format(Locale.US,
+                    "{\"orderId\":\"GPA.%05d\",\"packageName\":\"com.snakat.iap.benchmark\",\"productId\":\"%s\"," +
+                            "\"purchaseTime\":0,\"purchaseState\":0,\"purchaseToken\":\"token_%05d\",\"acknowledged\":%b}",
+                    i, sku(i), i, acknowledged), "signature"));
+        }
+        return purchases;
+    }
+}
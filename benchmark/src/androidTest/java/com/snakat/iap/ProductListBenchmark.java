@@ -0,0 +1,91 @@
+package com.snakat.iap;
+
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.util.ArrayList;
+import java.util.List;
+
+@RunWith(Parameterized.class)
+public class ProductListBenchmark {
+
+    @Parameterized.Parameters(name = "size={0}")
+    public static List<Object[]> sizes() {
+        List<Object[]> sizes = new ArrayList<>();
+        for (int size : Catalogs.SIZES) {
+            sizes.add(new Object[]{size});
+        }
+        return sizes;
+    }
+
+    @Rule
+    public BenchmarkRule mBenchmarkRule = new BenchmarkRule();
+
+    private final int mSize;
+
+    private ProductList mProducts;
+    private String mLastSku;
+    private String mMissingSku;
+
+    public ProductListBenchmark(int size) {
+        mSize = size;
+    }
+
+    @Before
+    public void setUp() {
+        mProducts = Catalogs.products(mSize);
+        mLastSku = Catalogs.sku(mSize - 1);
+        mMissingSku = Catalogs.sku(mSize);
+        mProducts.get(mLastSku);
+    }
+
+    @Test
+    public void getLast() {
+        BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning()) {
+            mProducts.get(mLastSku);
+        }
+    }
+
+    @Test
+    public void containsMissing() {
+        BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning()) {
+            mProducts.contains(mMissingSku);
+        }
+    }
+
+    /**
+     * Baseline: the linear scan ProductList did before it was indexed.
+     */
+    @Test
+    public void getLastLinear() {
+        BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning()) {
+            for (Product product : mProducts) {
+                if (product.getSku().equals(mLastSku)) {
+                    break;
+                }
+            }
+        }
+    }
+
+    @Test
+    public void addAndGet() {
+        BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning()) {
+            state.pauseTiming();
+            ProductList products = Catalogs.products(mSize);
+            state.resumeTiming();
+
+            products.add(new Product(mMissingSku, Product.Type.ONE_TIME));
+            products.get(mMissingSku);
+        }
+    }
+}
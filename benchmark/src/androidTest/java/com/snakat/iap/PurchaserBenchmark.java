@@ -0,0 +1,165 @@
+package com.snakat.iap;
+
+import android.app.Activity;
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.android.billingclient.api.Purchase;
+import com.android.billingclient.api.SkuDetails;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.util.ArrayList;
+import java.util.List;
+
+@RunWith(Parameterized.class)
+public class PurchaserBenchmark {
+
+    @Parameterized.Parameters(name = "size={0}")
+    public static List<Object[]> sizes() {
+        List<Object[]> sizes = new ArrayList<>();
+        for (int size : Catalogs.SIZES) {
+            sizes.add(new Object[]{size});
+        }
+        return sizes;
+    }
+
+    private static final IapTrace.Sink DISCARD = new IapTrace.Sink() {
+        @Override
+        public void write(@NonNull IapTrace.Entry entry) {
+        }
+    };
+
+    @Rule
+    public BenchmarkRule mBenchmarkRule = new BenchmarkRule();
+
+    private final int mSize;
+
+    private Purchaser mPurchaser;
+    private FakeBillingBackend mBackend;
+    private List<String> mSkus;
+    private List<Purchase> mPurchases;
+    private List<Purchase> mAcknowledgedPurchases;
+    private List<SkuDetails> mSkuDetails;
+    private List<SkuDetails> mRepricedSkuDetails;
+
+    public PurchaserBenchmark(int size) {
+        mSize = size;
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        mBackend = new FakeBillingBackend();
+        mPurchaser = new Purchaser(context, Catalogs.products(mSize), false, mBackend.factory());
+        mPurchaser.clearSkuDetailsCache();
+        mPurchaser.clearEntitlements();
+
+        mSkus = Catalogs.skus(mSize);
+        mPurchases = Catalogs.purchases(mSize, false);
+        mAcknowledgedPurchases = Catalogs.purchases(mSize, true);
+        mSkuDetails = Catalogs.skuDetails(mSize, 990000);
+        mRepricedSkuDetails = Catalogs.skuDetails(mSize, 1990000);
+        mBackend.addSkuDetails(mSkuDetails);
+    }
+
+    @After
+    public void tearDown() {
+        IapTrace.setLevel(IapTrace.Level.OFF);
+        IapTrace.setSink(null);
+        mPurchaser.endConnection();
+    }
+
+    @Test
+    public void updatePurchasesUnchanged() {
+        mPurchaser.updatePurchases(mPurchases);
+
+        BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning()) {
+            mPurchaser.updatePurchases(mPurchases);
+        }
+    }
+
+    @Test
+    public void updatePurchasesChanged() {
+        BenchmarkState state = mBenchmarkRule.getState();
+        boolean acknowledged = false;
+        while (state.keepRunning()) {
+            mPurchaser.updatePurchases(acknowledged ? mAcknowledgedPurchases : mPurchases);
+            acknowledged = !acknowledged;
+        }
+    }
+
+    @Test
+    public void updateSkuDetails() {
+        BenchmarkState state = mBenchmarkRule.getState();
+        boolean repriced = false;
+        while (state.keepRunning()) {
+            mPurchaser.updateSkuDetails(repriced ? mRepricedSkuDetails : mSkuDetails);
+            repriced = !repriced;
+        }
+    }
+
+    @Test
+    public void traceDisabled() {
+        IapTrace.setLevel(IapTrace.Level.OFF);
+
+        BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning()) {
+            mPurchaser.trace("benchmark", "OnSuccess.");
+        }
+    }
+
+    /**
+     * The full product dump that used to run on every subscribe/success/complete.
+     */
+    @Test
+    public void traceVerbose() {
+        IapTrace.setLevel(IapTrace.Level.VERBOSE);
+        IapTrace.setSink(DISCARD);
+
+        BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning()) {
+            mPurchaser.trace("benchmark", "OnSuccess.");
+        }
+    }
+
+    @Test
+    public void getProductsAssembly() {
+        BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning()) {
+            mPurchaser.getProducts(mSkus);
+        }
+    }
+
+    @Test
+    public void getProductsCached() {
+        mPurchaser.getProducts(mSkus).blockingGet();
+
+        BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning()) {
+            mPurchaser.getProducts(mSkus).blockingGet();
+        }
+    }
+
+    @Test
+    public void purchaseAssembly() {
+        Activity activity = null;
+        String sku = Catalogs.sku(mSize - 1);
+
+        BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning()) {
+            //noinspection ConstantConditions
+            mPurchaser.purchase(activity, sku);
+        }
+    }
+}
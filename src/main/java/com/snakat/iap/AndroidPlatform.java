@@ -0,0 +1,63 @@
+package com.snakat.iap;
+
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.StringRes;
+
+import java.io.File;
+import java.lang.ref.WeakReference;
+
+import io.reactivex.Scheduler;
+import io.reactivex.android.schedulers.AndroidSchedulers;
+
+final class AndroidPlatform implements Platform {
+
+    private final WeakReference<Context> mContext;
+    private final File mCacheDir;
+    private final File mFilesDir;
+    private final ResourcePressure mResourcePressure;
+
+    AndroidPlatform(@NonNull Context context) {
+        mContext = new WeakReference<>(context);
+        mCacheDir = context.getCacheDir();
+        mFilesDir = context.getFilesDir();
+        mResourcePressure = new ResourcePressure(context);
+        mResourcePressure.register();
+    }
+
+    @NonNull
+    @Override
+    public File getCacheDir() {
+        return mCacheDir;
+    }
+
+    @NonNull
+    @Override
+    public File getFilesDir() {
+        return mFilesDir;
+    }
+
+    @NonNull
+    @Override
+    public String getString(@StringRes int resId, Object... formatArgs) {
+        return mContext.get().getString(resId, formatArgs);
+    }
+
+    @NonNull
+    @Override
+    public Scheduler getMainThread() {
+        return AndroidSchedulers.mainThread();
+    }
+
+    @Override
+    public boolean isUnderPressure() {
+        return mResourcePressure.isUnderPressure();
+    }
+
+    @Override
+    public void release() {
+        mResourcePressure.unregister();
+        mContext.clear();
+    }
+}
@@ -0,0 +1,56 @@
+package com.snakat.iap;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public final class BatchResult {
+
+    private final List<Product> mSucceeded = new ArrayList<>();
+    private final Map<String, Throwable> mFailed = new LinkedHashMap<>();
+
+    BatchResult() {
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return "(Succeeded=" + mSucceeded + ", Failed=" + mFailed.keySet() + ")";
+    }
+
+    void addSuccess(@NonNull Product product) {
+        mSucceeded.add(product);
+    }
+
+    void addFailure(@NonNull String sku, @NonNull Throwable throwable) {
+        mFailed.put(sku, throwable);
+    }
+
+    @NonNull
+    public List<Product> getSucceeded() {
+        return Collections.unmodifiableList(mSucceeded);
+    }
+
+    @NonNull
+    public Map<String, Throwable> getFailed() {
+        return Collections.unmodifiableMap(mFailed);
+    }
+
+    @Nullable
+    public Throwable getError(@NonNull String sku) {
+        return mFailed.get(sku);
+    }
+
+    public boolean isSuccessful() {
+        return mFailed.isEmpty();
+    }
+
+    public int size() {
+        return mSucceeded.size() + mFailed.size();
+    }
+}
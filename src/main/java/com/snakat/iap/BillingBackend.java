@@ -0,0 +1,52 @@
+package com.snakat.iap;
+
+import android.app.Activity;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.android.billingclient.api.AcknowledgePurchaseResponseListener;
+import com.android.billingclient.api.BillingClientStateListener;
+import com.android.billingclient.api.BillingResult;
+import com.android.billingclient.api.ConsumeResponseListener;
+import com.android.billingclient.api.PurchasesResponseListener;
+import com.android.billingclient.api.PurchasesUpdatedListener;
+import com.android.billingclient.api.SkuDetails;
+import com.android.billingclient.api.SkuDetailsResponseListener;
+
+import java.util.List;
+
+/**
+ * The calls Purchaser makes to the billing service. {@link PlayBillingBackend} talks to Google
+ * Play; FakeBillingBackend, in the test fixtures, answers from memory so Purchaser can run without
+ * a device.
+ */
+public interface BillingBackend {
+
+    boolean isReady();
+
+    void startConnection(@NonNull BillingClientStateListener listener);
+
+    void endConnection();
+
+    void querySkuDetails(@NonNull String skuType, @NonNull List<String> skuList, @NonNull SkuDetailsResponseListener listener);
+
+    void queryPurchases(@NonNull String skuType, @NonNull PurchasesResponseListener listener);
+
+    /**
+     * Starts the purchase UI. The outcome is delivered later to the {@link PurchasesUpdatedListener}
+     * the backend was created with; the returned result only tells whether the flow started.
+     */
+    @NonNull
+    BillingResult launchBillingFlow(@NonNull Activity activity, @NonNull SkuDetails skuDetails,
+                                    @Nullable String obfuscatedAccountId, @Nullable String obfuscatedProfileId);
+
+    void acknowledgePurchase(@NonNull String purchaseToken, @NonNull AcknowledgePurchaseResponseListener listener);
+
+    void consume(@NonNull String purchaseToken, @NonNull ConsumeResponseListener listener);
+
+    interface Factory {
+        @NonNull
+        BillingBackend create(@NonNull PurchasesUpdatedListener listener);
+    }
+}
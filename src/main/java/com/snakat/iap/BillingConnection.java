@@ -0,0 +1,469 @@
+package com.snakat.iap;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.VisibleForTesting;
+
+import com.android.billingclient.api.BillingClient;
+import com.android.billingclient.api.BillingClientStateListener;
+import com.android.billingclient.api.BillingResult;
+
+import org.reactivestreams.Subscription;
+
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.reactivex.Completable;
+import io.reactivex.CompletableEmitter;
+import io.reactivex.CompletableOnSubscribe;
+import io.reactivex.Flowable;
+import io.reactivex.Maybe;
+import io.reactivex.Observable;
+import io.reactivex.Scheduler;
+import io.reactivex.Single;
+import io.reactivex.disposables.Disposable;
+import io.reactivex.functions.Action;
+import io.reactivex.functions.Cancellable;
+import io.reactivex.functions.Consumer;
+import io.reactivex.subjects.BehaviorSubject;
+import io.reactivex.subjects.Subject;
+
+final class BillingConnection {
+
+    static final long RECONNECT_BASE_DELAY = 500;
+    static final long RECONNECT_MAX_DELAY = TimeUnit.SECONDS.toMillis(30);
+
+    private final BillingBackend mBackend;
+    private final Scheduler mScheduler;
+    private final IapMetrics mMetrics;
+    private final Random mRandom = new Random();
+
+    private final Queue<Waiter> mWaiters = new ConcurrentLinkedQueue<>();
+    // Cancelled waiters stay queued until the next drain, so the unsettled ones are counted apart.
+    private final AtomicInteger mPendingWaiters = new AtomicInteger();
+    private final Subject<ConnectionState> mStates = BehaviorSubject.createDefault(ConnectionState.DISCONNECTED).toSerialized();
+    private final AtomicBoolean mConnecting = new AtomicBoolean();
+
+    private final AtomicLong mReconnectCount = new AtomicLong();
+    private final AtomicLong mReconnectLatency = new AtomicLong();
+    private final AtomicLong mLastReconnectLatency = new AtomicLong();
+    private final AtomicLong mIdleDisconnectCount = new AtomicLong();
+
+    private volatile boolean mKeepAlive = false;
+    private volatile boolean mClosed = false;
+    private volatile long mDisconnectedAt = 0;
+    private volatile long mIdleTimeout = 0;
+    private volatile boolean mBackground = false;
+
+    private int mAttempt = 0;
+    private Disposable mReconnect;
+    private int mActive = 0;
+    private long mIdleGeneration = 0;
+    private Disposable mIdleTimer;
+
+    BillingConnection(@NonNull BillingBackend backend, @NonNull Scheduler scheduler, @NonNull IapMetrics metrics) {
+        mBackend = backend;
+        mScheduler = scheduler;
+        mMetrics = metrics;
+    }
+
+    @NonNull
+    Completable connect() {
+        return Completable.create(new CompletableOnSubscribe() {
+            @Override
+            public void subscribe(CompletableEmitter emitter) throws Exception {
+                if (mBackend.isReady()) {
+                    emitter.onComplete();
+                    return;
+                }
+
+                Waiter waiter = new Waiter(emitter);
+                emitter.setCancellable(waiter);
+                mPendingWaiters.incrementAndGet();
+                mWaiters.offer(waiter);
+
+                // The connection may have finished between the check above and the offer,
+                // in which case nobody else is going to drain this waiter.
+                if (mClosed) {
+                    failWaiters(newClosedError());
+                } else if (mBackend.isReady()) {
+                    completeWaiters();
+                } else {
+                    startConnection();
+                }
+            }
+        });
+    }
+
+    boolean isReady() {
+        return mBackend.isReady();
+    }
+
+    void setKeepAlive(boolean keepAlive) {
+        mKeepAlive = keepAlive;
+        onIdle();
+        if (keepAlive && !mBackground && !mBackend.isReady()) {
+            startConnection();
+        }
+    }
+
+    /**
+     * Ends the connection once no operation has been in flight for {@code idleTimeout}
+     * milliseconds. The next operation reconnects. Zero keeps the connection open.
+     */
+    void setIdleTimeout(long idleTimeout) {
+        mIdleTimeout = Math.max(0, idleTimeout);
+        onIdle();
+    }
+
+    /**
+     * In background the connection ends as soon as it is idle, even with keep-alive on.
+     */
+    void setBackground(boolean background) {
+        mBackground = background;
+        onIdle();
+        if (!background && mKeepAlive && !mBackend.isReady()) {
+            startConnection();
+        }
+    }
+
+    /**
+     * Holds the connection open while {@code single} is in flight. Wrap the connect that precedes
+     * an operation too, so one reference covers both and the connection cannot go idle between
+     * them.
+     */
+    @NonNull
+    <T> Single<T> use(@NonNull Single<T> single) {
+        return single
+                .doOnSubscribe(new Consumer<Disposable>() {
+                    @Override
+                    public void accept(Disposable disposable) throws Exception {
+                        acquire();
+                    }
+                })
+                .doFinally(new Action() {
+                    @Override
+                    public void run() throws Exception {
+                        release();
+                    }
+                });
+    }
+
+    @NonNull
+    <T> Maybe<T> use(@NonNull Maybe<T> maybe) {
+        return maybe
+                .doOnSubscribe(new Consumer<Disposable>() {
+                    @Override
+                    public void accept(Disposable disposable) throws Exception {
+                        acquire();
+                    }
+                })
+                .doFinally(new Action() {
+                    @Override
+                    public void run() throws Exception {
+                        release();
+                    }
+                });
+    }
+
+    @NonNull
+    Completable use(@NonNull Completable completable) {
+        return completable
+                .doOnSubscribe(new Consumer<Disposable>() {
+                    @Override
+                    public void accept(Disposable disposable) throws Exception {
+                        acquire();
+                    }
+                })
+                .doFinally(new Action() {
+                    @Override
+                    public void run() throws Exception {
+                        release();
+                    }
+                });
+    }
+
+    @NonNull
+    <T> Flowable<T> use(@NonNull Flowable<T> flowable) {
+        return flowable
+                .doOnSubscribe(new Consumer<Subscription>() {
+                    @Override
+                    public void accept(Subscription subscription) throws Exception {
+                        acquire();
+                    }
+                })
+                .doFinally(new Action() {
+                    @Override
+                    public void run() throws Exception {
+                        release();
+                    }
+                });
+    }
+
+    long getIdleDisconnectCount() {
+        return mIdleDisconnectCount.get();
+    }
+
+    private void acquire() {
+        boolean first;
+        synchronized (this) {
+            first = mActive++ == 0;
+            cancelIdleDisconnect();
+        }
+        if (first) {
+            mMetrics.onActivity(true);
+        }
+    }
+
+    private void release() {
+        boolean last;
+        synchronized (this) {
+            last = --mActive == 0;
+            if (last) {
+                scheduleIdleDisconnect();
+            }
+        }
+        if (last) {
+            mMetrics.onActivity(false);
+        }
+    }
+
+    private void cancelIdleDisconnect() {
+        mIdleGeneration++;
+        if (mIdleTimer != null) {
+            mIdleTimer.dispose();
+            mIdleTimer = null;
+        }
+    }
+
+    private synchronized void scheduleIdleDisconnect() {
+        cancelIdleDisconnect();
+
+        long timeout = mBackground ? 0 : mIdleTimeout;
+        if (mClosed || !mBackground && (timeout == 0 || mKeepAlive)) {
+            return;
+        }
+        // Queued connect callers are about to use the connection.
+        if (mPendingWaiters.get() != 0) {
+            return;
+        }
+
+        long generation = mIdleGeneration;
+        mIdleTimer = mScheduler.scheduleDirect(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (BillingConnection.this) {
+                    if (mActive != 0 || generation != mIdleGeneration || mPendingWaiters.get() != 0) {
+                        return;
+                    }
+                    mIdleTimer = null;
+                    if (!mBackend.isReady() || mClosed) {
+                        return;
+                    }
+                    mBackend.endConnection();
+                }
+
+                mIdleDisconnectCount.incrementAndGet();
+                IapTrace.i("connection", "BillingClient disconnected after being idle.");
+                mStates.onNext(ConnectionState.DISCONNECTED);
+            }
+        }, timeout, TimeUnit.MILLISECONDS);
+    }
+
+    void end() {
+        mClosed = true;
+        synchronized (this) {
+            if (mReconnect != null) {
+                mReconnect.dispose();
+                mReconnect = null;
+            }
+            cancelIdleDisconnect();
+        }
+        mBackend.endConnection();
+        mStates.onNext(ConnectionState.CLOSED);
+        failWaiters(newClosedError());
+    }
+
+    @NonNull
+    Observable<ConnectionState> observeState() {
+        return mStates.distinctUntilChanged();
+    }
+
+    long getReconnectCount() {
+        return mReconnectCount.get();
+    }
+
+    long getLastReconnectLatency() {
+        return mLastReconnectLatency.get();
+    }
+
+    long getAverageReconnectLatency() {
+        long count = mReconnectCount.get();
+        return count == 0 ? 0 : mReconnectLatency.get() / count;
+    }
+
+    @VisibleForTesting
+    int getWaiterCount() {
+        return mPendingWaiters.get();
+    }
+
+    @VisibleForTesting
+    synchronized int getActiveCount() {
+        return mActive;
+    }
+
+    private void startConnection() {
+        if (mClosed || !mConnecting.compareAndSet(false, true)) {
+            return;
+        }
+
+        mStates.onNext(ConnectionState.CONNECTING);
+        long startedAt = System.nanoTime();
+        mBackend.startConnection(new BillingClientStateListener() {
+            @Override
+            public void onBillingSetupFinished(@NonNull BillingResult billingResult) {
+                mConnecting.set(false);
+
+                if (billingResult.getResponseCode() == BillingClient.BillingResponseCode.OK) {
+                    mMetrics.record(IapMetrics.Operation.START_CONNECTION, startedAt, null);
+                    IapTrace.i("connection", "BillingClient connected.");
+                    onConnected();
+                    completeWaiters();
+                    onIdle();
+                } else {
+                    IapError iapError = new IapError(billingResult);
+                    mMetrics.record(IapMetrics.Operation.START_CONNECTION, startedAt, iapError);
+                    IapTrace.i("connection", "BillingClient failed to connect with error: %s", iapError);
+                    mStates.onNext(ConnectionState.DISCONNECTED);
+                    failWaiters(iapError);
+                    scheduleReconnect();
+                }
+            }
+
+            @Override
+            public void onBillingServiceDisconnected() {
+                mConnecting.set(false);
+
+                IapTrace.i("connection", "BillingClient disconnected.");
+                mDisconnectedAt = System.nanoTime();
+                mStates.onNext(ConnectionState.DISCONNECTED);
+                scheduleReconnect();
+            }
+        });
+    }
+
+    private void completeWaiters() {
+        Waiter waiter;
+        while ((waiter = mWaiters.poll()) != null) {
+            waiter.complete();
+        }
+    }
+
+    private void failWaiters(@NonNull Throwable throwable) {
+        Waiter waiter;
+        while ((waiter = mWaiters.poll()) != null) {
+            waiter.fail(throwable);
+        }
+    }
+
+    @NonNull
+    private static IapError newClosedError() {
+        return new IapError(IapError.Code.SERVICE_DISCONNECTED, "BillingClient connection is closed.");
+    }
+
+    private void onConnected() {
+        long disconnectedAt = mDisconnectedAt;
+        if (disconnectedAt != 0) {
+            long latency = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - disconnectedAt);
+            mDisconnectedAt = 0;
+            mReconnectCount.incrementAndGet();
+            mReconnectLatency.addAndGet(latency);
+            mLastReconnectLatency.set(latency);
+            if (IapTrace.isEnabled(IapTrace.Level.INFO)) {
+                IapTrace.i("connection", "BillingClient reconnected in %d ms.", latency);
+            }
+        }
+
+        synchronized (this) {
+            mAttempt = 0;
+        }
+        mStates.onNext(ConnectionState.CONNECTED);
+    }
+
+    /**
+     * Starts the idle timer if nothing holds the connection. Called once the connect waiters are
+     * released, so they cannot lose the connection before using it.
+     */
+    private synchronized void onIdle() {
+        if (mActive == 0) {
+            scheduleIdleDisconnect();
+        }
+    }
+
+    private synchronized void scheduleReconnect() {
+        if (mClosed || !mKeepAlive || mBackground || mReconnect != null && !mReconnect.isDisposed()) {
+            return;
+        }
+
+        long delay = Math.min(RECONNECT_MAX_DELAY, RECONNECT_BASE_DELAY << Math.min(mAttempt, 16));
+        delay = delay / 2 + (long) (mRandom.nextDouble() * (delay / 2));
+        mAttempt++;
+
+        if (IapTrace.isEnabled(IapTrace.Level.INFO)) {
+            IapTrace.i("connection", "BillingClient reconnects in %d ms (attempt %d).", delay, mAttempt);
+        }
+
+        mReconnect = mScheduler.scheduleDirect(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (BillingConnection.this) {
+                    mReconnect = null;
+                }
+                if (mKeepAlive && !mBackground && !mBackend.isReady()) {
+                    startConnection();
+                }
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private final class Waiter implements Cancellable {
+        private final CompletableEmitter mEmitter;
+        private final AtomicBoolean mDone = new AtomicBoolean();
+
+        Waiter(@NonNull CompletableEmitter emitter) {
+            mEmitter = emitter;
+        }
+
+        void complete() {
+            if (settle()) {
+                mEmitter.onComplete();
+            }
+        }
+
+        void fail(@NonNull Throwable throwable) {
+            if (settle()) {
+                mEmitter.tryOnError(throwable);
+            }
+        }
+
+        /**
+         * Leaves the waiter in the queue: removing it would be O(n), and the drain skips it anyway.
+         */
+        @Override
+        public void cancel() throws Exception {
+            settle();
+        }
+
+        private boolean settle() {
+            if (!mDone.compareAndSet(false, true)) {
+                return false;
+            }
+            mPendingWaiters.decrementAndGet();
+            return true;
+        }
+    }
+}
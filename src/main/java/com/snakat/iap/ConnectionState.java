@@ -0,0 +1,27 @@
+package com.snakat.iap;
+
+import androidx.annotation.NonNull;
+
+public enum ConnectionState {
+    DISCONNECTED,
+    CONNECTING,
+    CONNECTED,
+    CLOSED,
+    ;
+
+    @NonNull
+    @Override
+    public String toString() {
+        switch (this) {
+            case DISCONNECTED:
+                return "DISCONNECTED";
+            case CONNECTING:
+                return "CONNECTING";
+            case CONNECTED:
+                return "CONNECTED";
+            case CLOSED:
+                return "CLOSED";
+        }
+        return super.toString();
+    }
+}
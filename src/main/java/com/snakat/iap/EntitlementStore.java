@@ -0,0 +1,191 @@
+package com.snakat.iap;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+final class EntitlementStore {
+
+    private static final int MAGIC = 0x49415045;
+    // Version 1 wrote the version as a single byte; its files fail the header check and are
+    // dropped, then rebuilt from Google Play on the next refresh.
+    private static final int VERSION = 2;
+
+    private final File mFile;
+    private final Object mWriteLock = new Object();
+    private final Map<String, Entry> mEntries = new HashMap<>();
+
+    private boolean mDirty = false;
+
+    EntitlementStore(@NonNull File file) {
+        mFile = file;
+    }
+
+    synchronized void load() {
+        mEntries.clear();
+
+        if (!mFile.exists()) {
+            return;
+        }
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            if (!IoUtils.readHeader(in, MAGIC, VERSION)) {
+                throw new IOException("Unsupported entitlement snapshot format.");
+            }
+
+            int count = in.readInt();
+            if (count < 0) {
+                throw new IOException("Corrupted entitlement snapshot.");
+            }
+            for (int i = 0; i < count; i++) {
+                String sku = in.readUTF();
+                int type = in.readByte();
+                int purchaseState = in.readByte();
+                boolean acknowledged = in.readBoolean();
+                String purchaseToken = in.readBoolean() ? in.readUTF() : null;
+
+                mEntries.put(sku, new Entry(
+                        Product.Type.from(type),
+                        new PurchaseRecord(purchaseToken, Product.PurchaseState.from(purchaseState), acknowledged)));
+            }
+        } catch (IOException | RuntimeException e) {
+            mEntries.clear();
+            //noinspection ResultOfMethodCallIgnored
+            mFile.delete();
+        } finally {
+            IoUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * When the snapshot was last written, or 0 when there is none.
+     */
+    long getSavedAt() {
+        return mFile.lastModified();
+    }
+
+    synchronized boolean isEmpty() {
+        return mEntries.isEmpty();
+    }
+
+    @Nullable
+    synchronized PurchaseRecord get(@NonNull Product product) {
+        Entry entry = mEntries.get(product.getSku());
+        if (entry == null || entry.mType != product.getType()) {
+            return null;
+        }
+        return entry.mRecord;
+    }
+
+    synchronized void update(@NonNull Product product) {
+        Entry entry = null;
+        if (product.getPurchaseState() != Product.PurchaseState.UNSPECIFIED) {
+            entry = new Entry(product.getType(), product.getPurchaseRecord());
+        }
+
+        Entry previous = entry != null ? mEntries.put(product.getSku(), entry) : mEntries.remove(product.getSku());
+        if (entry == null ? previous != null : !entry.equals(previous)) {
+            mDirty = true;
+        }
+    }
+
+    void save() throws IOException {
+        synchronized (mWriteLock) {
+            List<Map.Entry<String, Entry>> entries;
+            synchronized (this) {
+                if (!mDirty) {
+                    return;
+                }
+                entries = new ArrayList<>(mEntries.entrySet());
+                mDirty = false;
+            }
+
+            try {
+                write(entries);
+            } catch (IOException e) {
+                synchronized (this) {
+                    mDirty = true;
+                }
+                throw e;
+            }
+        }
+    }
+
+    void clear() {
+        synchronized (mWriteLock) {
+            synchronized (this) {
+                mEntries.clear();
+                mDirty = false;
+            }
+            //noinspection ResultOfMethodCallIgnored
+            mFile.delete();
+        }
+    }
+
+    private void write(@NonNull List<Map.Entry<String, Entry>> entries) throws IOException {
+        File tmp = IoUtils.tempFileFor(mFile);
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            IoUtils.writeHeader(out, MAGIC, VERSION);
+            out.writeInt(entries.size());
+            for (Map.Entry<String, Entry> item : entries) {
+                Entry entry = item.getValue();
+                out.writeUTF(item.getKey());
+                out.writeByte(entry.mType.toInt());
+                out.writeByte(entry.mRecord.mPurchaseState.toInt());
+                out.writeBoolean(entry.mRecord.mAcknowledged);
+                out.writeBoolean(entry.mRecord.mPurchaseToken != null);
+                if (entry.mRecord.mPurchaseToken != null) {
+                    out.writeUTF(entry.mRecord.mPurchaseToken);
+                }
+            }
+            out.flush();
+        } finally {
+            IoUtils.closeQuietly(out);
+        }
+
+        IoUtils.replace(tmp, mFile);
+    }
+
+    private static final class Entry {
+        final Product.Type mType;
+        final PurchaseRecord mRecord;
+
+        Entry(@NonNull Product.Type type, @NonNull PurchaseRecord record) {
+            mType = type;
+            mRecord = record;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Entry)) {
+                return false;
+            }
+            Entry entry = (Entry) o;
+            return mType == entry.mType && mRecord.equals(entry.mRecord);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * mType.hashCode() + mRecord.hashCode();
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package com.snakat.iap;
+
+import androidx.annotation.NonNull;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How old the products may be before {@link Purchaser#getProducts(java.util.List, FreshnessPolicy)} asks
+ * Google Play again. The age is the one of the oldest SkuDetails or of the last purchases query,
+ * whichever is older.
+ */
+public final class FreshnessPolicy {
+
+    /**
+     * Always queries Google Play. Unlike {@link Purchaser#getProducts(java.util.List)}, SkuDetails
+     * still fresh in the catalog cache are queried again too.
+     */
+    public static final FreshnessPolicy STRICT = new FreshnessPolicy(0, 0);
+
+    private final long mMaxAge;
+    private final long mMaxStale;
+
+    private FreshnessPolicy(long maxAge, long maxStale) {
+        mMaxAge = maxAge;
+        mMaxStale = maxStale;
+    }
+
+    /**
+     * Serves products younger than {@code maxAge} without a query, and queries for older ones.
+     */
+    @NonNull
+    public static FreshnessPolicy maxAge(long maxAge, @NonNull TimeUnit unit) {
+        return new FreshnessPolicy(Math.max(0, unit.toMillis(maxAge)), 0);
+    }
+
+    /**
+     * Like {@link #maxAge}, but products of any age are served right away and then refreshed in
+     * the background.
+     */
+    @NonNull
+    public static FreshnessPolicy staleWhileRevalidate(long maxAge, @NonNull TimeUnit unit) {
+        return new FreshnessPolicy(Math.max(0, unit.toMillis(maxAge)), Long.MAX_VALUE);
+    }
+
+    /**
+     * Like {@link #maxAge}, but products up to {@code maxStale} past {@code maxAge} are served
+     * right away and then refreshed in the background.
+     */
+    @NonNull
+    public static FreshnessPolicy staleWhileRevalidate(long maxAge, long maxStale, @NonNull TimeUnit unit) {
+        return new FreshnessPolicy(Math.max(0, unit.toMillis(maxAge)), Math.max(0, unit.toMillis(maxStale)));
+    }
+
+    public long getMaxAge(@NonNull TimeUnit unit) {
+        return unit.convert(mMaxAge, TimeUnit.MILLISECONDS);
+    }
+
+    public long getMaxStale(@NonNull TimeUnit unit) {
+        return mMaxStale == Long.MAX_VALUE ? Long.MAX_VALUE : unit.convert(mMaxStale, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param age age in milliseconds, {@link Long#MAX_VALUE} when unknown, or negative when some
+     *            products are not loaded at all.
+     */
+    @NonNull
+    Action decide(long age) {
+        if (age < 0) {
+            return Action.FETCH;
+        }
+        if (age < mMaxAge) {
+            return Action.SERVE;
+        }
+        if (mMaxStale == Long.MAX_VALUE || age - mMaxAge < mMaxStale) {
+            return Action.SERVE_AND_REVALIDATE;
+        }
+        return Action.FETCH;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return "FreshnessPolicy(maxAge=" + mMaxAge + "ms, maxStale=" + (mMaxStale == Long.MAX_VALUE ? "any" : mMaxStale + "ms") + ")";
+    }
+
+    enum Action {
+        SERVE,
+        SERVE_AND_REVALIDATE,
+        FETCH,
+    }
+}
@@ -0,0 +1,454 @@
+package com.snakat.iap;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import io.reactivex.Completable;
+import io.reactivex.CompletableSource;
+import io.reactivex.Maybe;
+import io.reactivex.MaybeSource;
+import io.reactivex.Single;
+import io.reactivex.SingleSource;
+import io.reactivex.functions.Action;
+import io.reactivex.functions.Consumer;
+
+public final class IapMetrics {
+
+    /**
+     * Upper bounds, in milliseconds, of the latency histogram buckets. The last bucket is unbounded.
+     */
+    static final long[] BUCKETS = {10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000};
+
+    private final Map<Operation, Histogram> mHistograms = new EnumMap<>(Operation.class);
+    private final AtomicLongArray mErrors = new AtomicLongArray(IapError.Code.values().length);
+    private final Map<Counter, Callable<Long>> mCounters = Collections.synchronizedMap(new EnumMap<Counter, Callable<Long>>(Counter.class));
+    private final List<Listener> mListeners = new CopyOnWriteArrayList<>();
+
+    private final long mCreatedAt = System.nanoTime();
+    private final AtomicLong mConnectedTime = new AtomicLong();
+    private final AtomicLong mIdleTime = new AtomicLong();
+    private volatile long mConnectedAt = 0;
+    private volatile long mIdleAt = 0;
+    private boolean mBusy = false;
+
+    IapMetrics() {
+        for (Operation operation : Operation.values()) {
+            mHistograms.put(operation, new Histogram());
+        }
+    }
+
+    public void addListener(@NonNull Listener listener) {
+        mListeners.add(listener);
+    }
+
+    public void removeListener(@NonNull Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    @NonNull
+    public Snapshot snapshot() {
+        Map<Operation, OperationStats> operations = new EnumMap<>(Operation.class);
+        for (Map.Entry<Operation, Histogram> entry : mHistograms.entrySet()) {
+            operations.put(entry.getKey(), entry.getValue().snapshot());
+        }
+
+        Map<IapError.Code, Long> errors = new EnumMap<>(IapError.Code.class);
+        for (IapError.Code code : IapError.Code.values()) {
+            long count = mErrors.get(code.ordinal());
+            if (count > 0) {
+                errors.put(code, count);
+            }
+        }
+
+        Map<Counter, Long> counters = new EnumMap<>(Counter.class);
+        synchronized (mCounters) {
+            for (Map.Entry<Counter, Callable<Long>> entry : mCounters.entrySet()) {
+                try {
+                    counters.put(entry.getKey(), entry.getValue().call());
+                } catch (Exception ignored) {
+                }
+            }
+        }
+
+        long now = System.nanoTime();
+        long connectedTime;
+        long idleTime;
+        synchronized (mConnectedTime) {
+            connectedTime = getConnectedTime(now);
+            idleTime = getIdleTime(now);
+        }
+        return new Snapshot(operations, errors, counters,
+                TimeUnit.NANOSECONDS.toMillis(now - mCreatedAt),
+                TimeUnit.NANOSECONDS.toMillis(connectedTime),
+                TimeUnit.NANOSECONDS.toMillis(idleTime));
+    }
+
+    void register(@NonNull Counter counter, @NonNull Callable<Long> source) {
+        mCounters.put(counter, source);
+    }
+
+    void onConnectionState(@NonNull ConnectionState state) {
+        long now = System.nanoTime();
+        synchronized (mConnectedTime) {
+            if (state == ConnectionState.CONNECTED) {
+                if (mConnectedAt == 0) {
+                    mConnectedAt = now;
+                    if (!mBusy) {
+                        mIdleAt = now;
+                    }
+                }
+            } else if (mConnectedAt != 0) {
+                mConnectedTime.addAndGet(now - mConnectedAt);
+                mConnectedAt = 0;
+                stopIdle(now);
+            }
+        }
+    }
+
+    /**
+     * Called when the first operation starts ({@code true}) and when the last one ends, so the
+     * connected time can be split into busy and idle time.
+     */
+    void onActivity(boolean busy) {
+        long now = System.nanoTime();
+        synchronized (mConnectedTime) {
+            mBusy = busy;
+            if (busy) {
+                stopIdle(now);
+            } else if (mConnectedAt != 0 && mIdleAt == 0) {
+                mIdleAt = now;
+            }
+        }
+    }
+
+    private void stopIdle(long now) {
+        if (mIdleAt != 0) {
+            mIdleTime.addAndGet(now - mIdleAt);
+            mIdleAt = 0;
+        }
+    }
+
+    void record(@NonNull Operation operation, long startedAt, @Nullable Throwable error) {
+        long latency = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt);
+        IapError.Code code = null;
+        if (error != null) {
+            code = error instanceof IapError ? ((IapError) error).getCode() : IapError.Code.UNKNOWN;
+            mErrors.incrementAndGet(code.ordinal());
+        }
+        mHistograms.get(operation).record(latency, code != null);
+
+        for (Listener listener : mListeners) {
+            try {
+                listener.onOperation(operation, latency, code);
+            } catch (RuntimeException ignored) {
+                // A faulty listener must never break a billing flow.
+            }
+        }
+    }
+
+    @NonNull
+    <T> Single<T> time(@NonNull Operation operation, @NonNull Single<T> single) {
+        return Single.defer(new Callable<SingleSource<T>>() {
+            @Override
+            public SingleSource<T> call() throws Exception {
+                long startedAt = System.nanoTime();
+                return single
+                        .doOnSuccess(new Consumer<T>() {
+                            @Override
+                            public void accept(T t) throws Exception {
+                                record(operation, startedAt, null);
+                            }
+                        })
+                        .doOnError(new Consumer<Throwable>() {
+                            @Override
+                            public void accept(Throwable throwable) throws Exception {
+                                record(operation, startedAt, throwable);
+                            }
+                        });
+            }
+        });
+    }
+
+    @NonNull
+    <T> Maybe<T> time(@NonNull Operation operation, @NonNull Maybe<T> maybe) {
+        return Maybe.defer(new Callable<MaybeSource<T>>() {
+            @Override
+            public MaybeSource<T> call() throws Exception {
+                long startedAt = System.nanoTime();
+                return maybe
+                        .doOnSuccess(new Consumer<T>() {
+                            @Override
+                            public void accept(T t) throws Exception {
+                                record(operation, startedAt, null);
+                            }
+                        })
+                        .doOnComplete(new Action() {
+                            @Override
+                            public void run() throws Exception {
+                                record(operation, startedAt, null);
+                            }
+                        })
+                        .doOnError(new Consumer<Throwable>() {
+                            @Override
+                            public void accept(Throwable throwable) throws Exception {
+                                record(operation, startedAt, throwable);
+                            }
+                        });
+            }
+        });
+    }
+
+    @NonNull
+    Completable time(@NonNull Operation operation, @NonNull Completable completable) {
+        return Completable.defer(new Callable<CompletableSource>() {
+            @Override
+            public CompletableSource call() throws Exception {
+                long startedAt = System.nanoTime();
+                return completable
+                        .doOnComplete(new Action() {
+                            @Override
+                            public void run() throws Exception {
+                                record(operation, startedAt, null);
+                            }
+                        })
+                        .doOnError(new Consumer<Throwable>() {
+                            @Override
+                            public void accept(Throwable throwable) throws Exception {
+                                record(operation, startedAt, throwable);
+                            }
+                        });
+            }
+        });
+    }
+
+    private long getConnectedTime(long now) {
+        long connectedAt = mConnectedAt;
+        return mConnectedTime.get() + (connectedAt != 0 ? now - connectedAt : 0);
+    }
+
+    private long getIdleTime(long now) {
+        long idleAt = mIdleAt;
+        return mIdleTime.get() + (idleAt != 0 ? now - idleAt : 0);
+    }
+
+    public enum Operation {
+        START_CONNECTION,
+        QUERY_SKU_DETAILS,
+        QUERY_PURCHASES,
+        LAUNCH_BILLING_FLOW,
+        ACKNOWLEDGE_PURCHASE,
+        CONSUME,
+    }
+
+    public enum Counter {
+        SKU_DETAILS_CACHE_HITS,
+        SKU_DETAILS_CACHE_MISSES,
+        SKU_DETAILS_QUERIES_COALESCED,
+        PURCHASES_QUERIES_COALESCED,
+        RETRIES,
+        RECONNECTS,
+        IDLE_DISCONNECTS,
+        OPTIMISTIC_DRIFT,
+    }
+
+    public interface Listener {
+        /**
+         * Called on the thread that finished the operation, so keep it short.
+         *
+         * @param error {@code null} when the operation succeeded.
+         */
+        void onOperation(@NonNull Operation operation, long latencyMillis, @Nullable IapError.Code error);
+    }
+
+    public static final class OperationStats {
+        private final long mCount;
+        private final long mErrorCount;
+        private final long mTotalLatency;
+        private final long mMaxLatency;
+        private final long[] mBuckets;
+
+        OperationStats(long count, long errorCount, long totalLatency, long maxLatency, @NonNull long[] buckets) {
+            mCount = count;
+            mErrorCount = errorCount;
+            mTotalLatency = totalLatency;
+            mMaxLatency = maxLatency;
+            mBuckets = buckets;
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return "(Count=" + mCount + ", Errors=" + mErrorCount + ", Mean=" + getMeanLatency() +
+                    ", P50=" + getPercentile(0.5) + ", P95=" + getPercentile(0.95) + ", Max=" + mMaxLatency + ")";
+        }
+
+        public long getCount() {
+            return mCount;
+        }
+
+        public long getErrorCount() {
+            return mErrorCount;
+        }
+
+        public long getMeanLatency() {
+            return mCount == 0 ? 0 : mTotalLatency / mCount;
+        }
+
+        public long getMaxLatency() {
+            return mMaxLatency;
+        }
+
+        /**
+         * Returns the upper bound of the histogram bucket holding the given percentile, capped at
+         * the max latency seen.
+         */
+        public long getPercentile(double percentile) {
+            if (mCount == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(Math.max(0, Math.min(1, percentile)) * mCount);
+            long seen = 0;
+            for (int i = 0; i < mBuckets.length; i++) {
+                seen += mBuckets[i];
+                if (seen >= rank) {
+                    return i < BUCKETS.length ? Math.min(BUCKETS[i], mMaxLatency) : mMaxLatency;
+                }
+            }
+            return mMaxLatency;
+        }
+
+        /**
+         * Returns the number of samples per bucket, see {@link #getBucketBounds()}.
+         */
+        @NonNull
+        public long[] getBuckets() {
+            return mBuckets.clone();
+        }
+
+        @NonNull
+        public static long[] getBucketBounds() {
+            return BUCKETS.clone();
+        }
+    }
+
+    public static final class Snapshot {
+        private final Map<Operation, OperationStats> mOperations;
+        private final Map<IapError.Code, Long> mErrors;
+        private final Map<Counter, Long> mCounters;
+        private final long mUptime;
+        private final long mConnectedTime;
+        private final long mIdleTime;
+
+        Snapshot(@NonNull Map<Operation, OperationStats> operations, @NonNull Map<IapError.Code, Long> errors,
+                 @NonNull Map<Counter, Long> counters, long uptime, long connectedTime, long idleTime) {
+            mOperations = Collections.unmodifiableMap(operations);
+            mErrors = Collections.unmodifiableMap(errors);
+            mCounters = Collections.unmodifiableMap(counters);
+            mUptime = uptime;
+            mConnectedTime = connectedTime;
+            mIdleTime = idleTime;
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return "(Operations=" + mOperations + ", Errors=" + mErrors + ", Counters=" + mCounters +
+                    ", Uptime=" + mUptime + ", ConnectedTime=" + mConnectedTime + ", IdleTime=" + mIdleTime + ")";
+        }
+
+        @NonNull
+        public OperationStats get(@NonNull Operation operation) {
+            return mOperations.get(operation);
+        }
+
+        @NonNull
+        public Map<Operation, OperationStats> getOperations() {
+            return mOperations;
+        }
+
+        @NonNull
+        public Map<IapError.Code, Long> getErrors() {
+            return mErrors;
+        }
+
+        public long getErrorCount(@NonNull IapError.Code code) {
+            Long count = mErrors.get(code);
+            return count != null ? count : 0;
+        }
+
+        public long getCounter(@NonNull Counter counter) {
+            Long value = mCounters.get(counter);
+            return value != null ? value : 0;
+        }
+
+        public long getUptime() {
+            return mUptime;
+        }
+
+        public long getConnectedTime() {
+            return mConnectedTime;
+        }
+
+        public double getConnectedRatio() {
+            return mUptime == 0 ? 0 : (double) mConnectedTime / mUptime;
+        }
+
+        /**
+         * Time spent connected with no billing operation in flight.
+         */
+        public long getIdleTime() {
+            return mIdleTime;
+        }
+
+        public double getIdleRatio() {
+            return mConnectedTime == 0 ? 0 : (double) mIdleTime / mConnectedTime;
+        }
+    }
+
+    private static final class Histogram {
+        private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKETS.length + 1);
+        private final AtomicLong mCount = new AtomicLong();
+        private final AtomicLong mErrorCount = new AtomicLong();
+        private final AtomicLong mTotalLatency = new AtomicLong();
+        private final AtomicLong mMaxLatency = new AtomicLong();
+
+        void record(long latency, boolean failed) {
+            int bucket = 0;
+            while (bucket < BUCKETS.length && latency > BUCKETS[bucket]) {
+                bucket++;
+            }
+            mBuckets.incrementAndGet(bucket);
+            mCount.incrementAndGet();
+            if (failed) {
+                mErrorCount.incrementAndGet();
+            }
+            mTotalLatency.addAndGet(latency);
+
+            long max;
+            do {
+                max = mMaxLatency.get();
+            } while (latency > max && !mMaxLatency.compareAndSet(max, latency));
+        }
+
+        @NonNull
+        OperationStats snapshot() {
+            long[] buckets = new long[mBuckets.length()];
+            long count = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = mBuckets.get(i);
+                count += buckets[i];
+            }
+            return new OperationStats(count, mErrorCount.get(), mTotalLatency.get(), mMaxLatency.get(), buckets);
+        }
+    }
+}
@@ -0,0 +1,266 @@
+package com.snakat.iap;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Tracing facade of the library. Messages are only formatted when their level is enabled and the
+ * operation is sampled, so a disabled trace call costs a volatile read and allocates nothing.
+ */
+public final class IapTrace {
+
+    public static final int DEFAULT_BUFFER_SIZE = 256;
+
+    static final String TAG = Purchaser.class.getName();
+
+    public static final Sink LOGCAT = new Sink() {
+        @Override
+        public void write(@NonNull Entry entry) {
+            String message = "[" + entry.mOperation + "] " + entry.mMessage;
+            switch (entry.mLevel) {
+                case VERBOSE:
+                    Log.v(TAG, message);
+                    break;
+                case DEBUG:
+                    Log.d(TAG, message);
+                    break;
+                case WARN:
+                    Log.w(TAG, message, entry.mError);
+                    break;
+                case ERROR:
+                    Log.e(TAG, message, entry.mError);
+                    break;
+                default:
+                    Log.i(TAG, message);
+                    break;
+            }
+        }
+    };
+
+    private static final Map<String, Sampler> sSamplers = new ConcurrentHashMap<>();
+
+    private static volatile int sLevel = Level.OFF.ordinal();
+    private static volatile Sink sSink = LOGCAT;
+    private static volatile RingBuffer sBuffer = new RingBuffer(DEFAULT_BUFFER_SIZE);
+
+    private IapTrace() {
+    }
+
+    public static void setLevel(@NonNull Level level) {
+        sLevel = level.ordinal();
+    }
+
+    @NonNull
+    public static Level getLevel() {
+        return Level.values()[sLevel];
+    }
+
+    public static void setSink(@Nullable Sink sink) {
+        sSink = sink != null ? sink : LOGCAT;
+    }
+
+    /**
+     * Keeps one out of every {@code oneIn} traces of the given operation. Pass 1 to keep them all.
+     */
+    public static void setSampling(@NonNull String operation, int oneIn) {
+        if (oneIn <= 1) {
+            sSamplers.remove(operation);
+        } else {
+            sSamplers.put(operation, new Sampler(oneIn));
+        }
+    }
+
+    public static void setBufferSize(int size) {
+        sBuffer = new RingBuffer(Math.max(1, size));
+    }
+
+    @NonNull
+    public static List<Entry> getRecent() {
+        return sBuffer.snapshot();
+    }
+
+    public static boolean isEnabled(@NonNull Level level) {
+        return level.ordinal() >= sLevel && level != Level.OFF;
+    }
+
+    static void v(@NonNull String operation, @NonNull String message) {
+        log(Level.VERBOSE, operation, null, message, 0, null, null, null);
+    }
+
+    static void d(@NonNull String operation, @NonNull String message) {
+        log(Level.DEBUG, operation, null, message, 0, null, null, null);
+    }
+
+    static void d(@NonNull String operation, @NonNull String format, @Nullable Object arg) {
+        log(Level.DEBUG, operation, null, format, 1, arg, null, null);
+    }
+
+    static void i(@NonNull String operation, @NonNull String message) {
+        log(Level.INFO, operation, null, message, 0, null, null, null);
+    }
+
+    static void i(@NonNull String operation, @NonNull String format, @Nullable Object arg) {
+        log(Level.INFO, operation, null, format, 1, arg, null, null);
+    }
+
+    static void i(@NonNull String operation, @NonNull String format, @Nullable Object arg1, @Nullable Object arg2) {
+        log(Level.INFO, operation, null, format, 2, arg1, arg2, null);
+    }
+
+    static void i(@NonNull String operation, @NonNull String format, @Nullable Object arg1, @Nullable Object arg2, @Nullable Object arg3) {
+        log(Level.INFO, operation, null, format, 3, arg1, arg2, arg3);
+    }
+
+    static void w(@NonNull String operation, @Nullable Throwable error, @NonNull String format, @Nullable Object arg) {
+        log(Level.WARN, operation, error, format, 1, arg, null, null);
+    }
+
+    static void w(@NonNull String operation, @Nullable Throwable error, @NonNull String format, @Nullable Object arg1, @Nullable Object arg2) {
+        log(Level.WARN, operation, error, format, 2, arg1, arg2, null);
+    }
+
+    private static void log(@NonNull Level level, @NonNull String operation, @Nullable Throwable error,
+                            @NonNull String format, int argCount,
+                            @Nullable Object arg1, @Nullable Object arg2, @Nullable Object arg3) {
+        if (!isEnabled(level)) {
+            return;
+        }
+        Sampler sampler = sSamplers.isEmpty() ? null : sSamplers.get(operation);
+        if (sampler != null && !sampler.sample()) {
+            return;
+        }
+
+        String message;
+        switch (argCount) {
+            case 0:
+                message = format;
+                break;
+            case 1:
+                message = String.format(format, arg1);
+                break;
+            case 2:
+                message = String.format(format, arg1, arg2);
+                break;
+            default:
+                message = String.format(format, arg1, arg2, arg3);
+                break;
+        }
+
+        Entry entry = new Entry(System.currentTimeMillis(), level, operation, message, error);
+        sBuffer.add(entry);
+        try {
+            sSink.write(entry);
+        } catch (RuntimeException ignored) {
+            // A faulty sink must never break a billing flow.
+        }
+    }
+
+    public enum Level {
+        VERBOSE,
+        DEBUG,
+        INFO,
+        WARN,
+        ERROR,
+        OFF,
+    }
+
+    public interface Sink {
+        void write(@NonNull Entry entry);
+    }
+
+    public static final class Entry {
+        final long mTime;
+        final Level mLevel;
+        final String mOperation;
+        final String mMessage;
+        final Throwable mError;
+
+        Entry(long time, @NonNull Level level, @NonNull String operation, @NonNull String message, @Nullable Throwable error) {
+            mTime = time;
+            mLevel = level;
+            mOperation = operation;
+            mMessage = message;
+            mError = error;
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return mTime + " " + mLevel + " [" + mOperation + "] " + mMessage;
+        }
+
+        public long getTime() {
+            return mTime;
+        }
+
+        @NonNull
+        public Level getLevel() {
+            return mLevel;
+        }
+
+        @NonNull
+        public String getOperation() {
+            return mOperation;
+        }
+
+        @NonNull
+        public String getMessage() {
+            return mMessage;
+        }
+
+        @Nullable
+        public Throwable getError() {
+            return mError;
+        }
+    }
+
+    private static final class Sampler {
+        private final int mOneIn;
+        private final AtomicLong mCount = new AtomicLong();
+
+        Sampler(int oneIn) {
+            mOneIn = oneIn;
+        }
+
+        boolean sample() {
+            return mCount.getAndIncrement() % mOneIn == 0;
+        }
+    }
+
+    private static final class RingBuffer {
+        private final AtomicReferenceArray<Entry> mEntries;
+        private final AtomicLong mNext = new AtomicLong();
+
+        RingBuffer(int size) {
+            mEntries = new AtomicReferenceArray<>(size);
+        }
+
+        void add(@NonNull Entry entry) {
+            mEntries.set((int) (mNext.getAndIncrement() % mEntries.length()), entry);
+        }
+
+        @NonNull
+        List<Entry> snapshot() {
+            int size = mEntries.length();
+            long next = mNext.get();
+            long first = Math.max(0, next - size);
+            List<Entry> entries = new ArrayList<>((int) (next - first));
+            for (long i = first; i < next; i++) {
+                Entry entry = mEntries.get((int) (i % size));
+                if (entry != null) {
+                    entries.add(entry);
+                }
+            }
+            return entries;
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package com.snakat.iap;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+
+final class IoUtils {
+
+    private IoUtils() {
+    }
+
+    @NonNull
+    static File tempFileFor(@NonNull File file) throws IOException {
+        File parent = file.getParentFile();
+        if (parent != null && !parent.exists() && !parent.mkdirs()) {
+            throw new IOException("Cannot create " + parent);
+        }
+        return new File(file.getPath() + ".tmp");
+    }
+
+    static void replace(@NonNull File tmp, @NonNull File file) throws IOException {
+        if (!tmp.renameTo(file)) {
+            //noinspection ResultOfMethodCallIgnored
+            tmp.delete();
+            throw new IOException("Cannot write " + file);
+        }
+    }
+
+    /**
+     * Writes the header every file of the library starts with: the file's magic number, then its
+     * format version, both as ints.
+     */
+    static void writeHeader(@NonNull DataOutput out, int magic, int version) throws IOException {
+        out.writeInt(magic);
+        out.writeInt(version);
+    }
+
+    /**
+     * Returns whether the input starts with the header {@link #writeHeader} writes for the given
+     * magic number and version.
+     */
+    static boolean readHeader(@NonNull DataInput in, int magic, int version) throws IOException {
+        return in.readInt() == magic && in.readInt() == version;
+    }
+
+    static void closeQuietly(@Nullable Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package com.snakat.iap;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.StringRes;
+
+import java.io.File;
+
+import io.reactivex.Scheduler;
+
+/**
+ * What the purchaser needs from Android. {@link AndroidPlatform} backs it with a Context; tests
+ * provide their own so the purchaser runs on a plain JVM.
+ */
+interface Platform {
+
+    /**
+     * Where the SkuDetails cache is kept. The system may clear it.
+     */
+    @NonNull
+    File getCacheDir();
+
+    /**
+     * Where the entitlement snapshot is kept.
+     */
+    @NonNull
+    File getFilesDir();
+
+    @NonNull
+    String getString(@StringRes int resId, Object... formatArgs);
+
+    /**
+     * The scheduler the purchase screen is launched on.
+     */
+    @NonNull
+    Scheduler getMainThread();
+
+    /**
+     * Whether background work such as prefetching should stop, e.g. when short on memory or
+     * battery.
+     */
+    boolean isUnderPressure();
+
+    /**
+     * Called once the purchaser ends its connection for good.
+     */
+    void release();
+}
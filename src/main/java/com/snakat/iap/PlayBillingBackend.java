@@ -0,0 +1,125 @@
+package com.snakat.iap;
+
+import android.app.Activity;
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.android.billingclient.api.AcknowledgePurchaseParams;
+import com.android.billingclient.api.AcknowledgePurchaseResponseListener;
+import com.android.billingclient.api.BillingClient;
+import com.android.billingclient.api.BillingClientStateListener;
+import com.android.billingclient.api.BillingFlowParams;
+import com.android.billingclient.api.BillingResult;
+import com.android.billingclient.api.ConsumeParams;
+import com.android.billingclient.api.ConsumeResponseListener;
+import com.android.billingclient.api.PurchasesResponseListener;
+import com.android.billingclient.api.PurchasesUpdatedListener;
+import com.android.billingclient.api.SkuDetails;
+import com.android.billingclient.api.SkuDetailsParams;
+import com.android.billingclient.api.SkuDetailsResponseListener;
+
+import java.util.List;
+
+final class PlayBillingBackend implements BillingBackend {
+
+    private final Context mContext;
+    private final PurchasesUpdatedListener mListener;
+
+    private volatile BillingClient mBillingClient;
+
+    PlayBillingBackend(@NonNull Context context, @NonNull PurchasesUpdatedListener listener) {
+        Context applicationContext = context.getApplicationContext();
+        mContext = applicationContext != null ? applicationContext : context;
+        mListener = listener;
+        mBillingClient = newBillingClient();
+    }
+
+    @NonNull
+    static Factory factory(@NonNull Context context) {
+        return new Factory() {
+            @NonNull
+            @Override
+            public BillingBackend create(@NonNull PurchasesUpdatedListener listener) {
+                return new PlayBillingBackend(context, listener);
+            }
+        };
+    }
+
+    @NonNull
+    private BillingClient newBillingClient() {
+        return BillingClient.newBuilder(mContext)
+                .setListener(mListener)
+                .enablePendingPurchases()
+                .build();
+    }
+
+    @Override
+    public boolean isReady() {
+        return mBillingClient.isReady();
+    }
+
+    @Override
+    public void startConnection(@NonNull BillingClientStateListener listener) {
+        BillingClient billingClient;
+        synchronized (this) {
+            // A BillingClient cannot be reused once ended, e.g. after an idle disconnect.
+            if (mBillingClient.getConnectionState() == BillingClient.ConnectionState.CLOSED) {
+                mBillingClient = newBillingClient();
+            }
+            billingClient = mBillingClient;
+        }
+        billingClient.startConnection(listener);
+    }
+
+    @Override
+    public void endConnection() {
+        mBillingClient.endConnection();
+    }
+
+    @Override
+    public void querySkuDetails(@NonNull String skuType, @NonNull List<String> skuList, @NonNull SkuDetailsResponseListener listener) {
+        SkuDetailsParams params = SkuDetailsParams.newBuilder()
+                .setSkusList(skuList)
+                .setType(skuType)
+                .build();
+        mBillingClient.querySkuDetailsAsync(params, listener);
+    }
+
+    @Override
+    public void queryPurchases(@NonNull String skuType, @NonNull PurchasesResponseListener listener) {
+        mBillingClient.queryPurchasesAsync(skuType, listener);
+    }
+
+    @NonNull
+    @Override
+    public BillingResult launchBillingFlow(@NonNull Activity activity, @NonNull SkuDetails skuDetails,
+                                           @Nullable String obfuscatedAccountId, @Nullable String obfuscatedProfileId) {
+        BillingFlowParams.Builder builder = BillingFlowParams.newBuilder()
+                .setSkuDetails(skuDetails);
+        if (obfuscatedAccountId != null) {
+            builder.setObfuscatedAccountId(obfuscatedAccountId);
+        }
+        if (obfuscatedProfileId != null) {
+            builder.setObfuscatedProfileId(obfuscatedProfileId);
+        }
+        return mBillingClient.launchBillingFlow(activity, builder.build());
+    }
+
+    @Override
+    public void acknowledgePurchase(@NonNull String purchaseToken, @NonNull AcknowledgePurchaseResponseListener listener) {
+        AcknowledgePurchaseParams params = AcknowledgePurchaseParams.newBuilder()
+                .setPurchaseToken(purchaseToken)
+                .build();
+        mBillingClient.acknowledgePurchase(params, listener);
+    }
+
+    @Override
+    public void consume(@NonNull String purchaseToken, @NonNull ConsumeResponseListener listener) {
+        ConsumeParams params = ConsumeParams.newBuilder()
+                .setPurchaseToken(purchaseToken)
+                .build();
+        mBillingClient.consumeAsync(params, listener);
+    }
+}
@@ -0,0 +1,69 @@
+package com.snakat.iap;
+
+import android.app.Activity;
+import android.app.Application;
+import android.os.Bundle;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Tells the connection when the app goes to the background, i.e. when no activity is started, so
+ * it can drop the billing connection as soon as it is idle and skip reconnecting until the app
+ * comes back.
+ */
+final class ProcessLifecycleBinding implements Application.ActivityLifecycleCallbacks {
+
+    private final Application mApplication;
+    private final BillingConnection mConnection;
+
+    private int mStarted = 0;
+
+    ProcessLifecycleBinding(@NonNull Application application, @NonNull BillingConnection connection) {
+        mApplication = application;
+        mConnection = connection;
+    }
+
+    void bind() {
+        mApplication.registerActivityLifecycleCallbacks(this);
+    }
+
+    void unbind() {
+        mApplication.unregisterActivityLifecycleCallbacks(this);
+        mConnection.setBackground(false);
+    }
+
+    @Override
+    public void onActivityStarted(@NonNull Activity activity) {
+        if (mStarted++ == 0) {
+            mConnection.setBackground(false);
+        }
+    }
+
+    @Override
+    public void onActivityStopped(@NonNull Activity activity) {
+        if (mStarted > 0 && --mStarted == 0 && !activity.isChangingConfigurations()) {
+            mConnection.setBackground(true);
+        }
+    }
+
+    @Override
+    public void onActivityCreated(@NonNull Activity activity, @Nullable Bundle savedInstanceState) {
+    }
+
+    @Override
+    public void onActivityResumed(@NonNull Activity activity) {
+    }
+
+    @Override
+    public void onActivityPaused(@NonNull Activity activity) {
+    }
+
+    @Override
+    public void onActivitySaveInstanceState(@NonNull Activity activity, @NonNull Bundle outState) {
+    }
+
+    @Override
+    public void onActivityDestroyed(@NonNull Activity activity) {
+    }
+}
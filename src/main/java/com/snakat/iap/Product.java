@@ -3,19 +3,21 @@ package com.snakat.iap;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
+import com.android.billingclient.api.BillingClient;
 import com.android.billingclient.api.Purchase;
 import com.android.billingclient.api.SkuDetails;
 
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
 public class Product {
 
+    private static final AtomicReferenceFieldUpdater<Product, State> STATE =
+            AtomicReferenceFieldUpdater.newUpdater(Product.class, State.class, "mState");
+
     private final String mSku;
     private final Type mType;
 
-    private SkuDetails mSkuDetails;
-
-    private String mPurchaseToken = null;
-    private PurchaseState mPurchaseState = PurchaseState.UNSPECIFIED;
-    private boolean mAcknowledged = false;
+    private volatile State mState = State.EMPTY;
 
     public Product(@NonNull String sku, @NonNull Type type) {
         mSku = sku;
@@ -25,19 +27,27 @@ public class Product {
     @NonNull
     @Override
     public String toString() {
+        PurchaseRecord purchase = mState.mPurchase;
         StringBuilder sb = new StringBuilder()
                 .append("(")
                 .append(mSku)
                 .append(", ").append(mType)
-                .append(", PurchaseState=").append(mPurchaseState)
-                .append(", Acknowledged=").append(mAcknowledged);
-        if (Purchaser.LOG_ENABLED) {
-            sb.append(", PurchaseToken=").append(mPurchaseToken);
+                .append(", PurchaseState=").append(purchase.mPurchaseState)
+                .append(", Acknowledged=").append(purchase.mAcknowledged);
+        if (IapTrace.isEnabled(IapTrace.Level.DEBUG)) {
+            sb.append(", PurchaseToken=").append(purchase.mPurchaseToken);
         }
         sb.append(")");
         return sb.toString();
     }
 
+    @NonNull
+    Product snapshot() {
+        Product product = new Product(mSku, mType);
+        product.mState = mState;
+        return product;
+    }
+
     @NonNull
     public String getSku() {
         return mSku;
@@ -56,93 +66,108 @@ public class Product {
         return mType == Type.CONSUMABLE;
     }
 
+    public boolean isSubscription() {
+        return mType == Type.SUBSCRIPTION;
+    }
+
     @Nullable
     SkuDetails getSkuDetails() {
-        return mSkuDetails;
+        return mState.mSkuDetails;
     }
 
     void setSkuDetails(@Nullable SkuDetails skuDetails) {
-        mSkuDetails = skuDetails;
+        State state;
+        do {
+            state = mState;
+        } while (!STATE.compareAndSet(this, state, new State(skuDetails, state.mPurchase)));
     }
 
     public boolean isLoaded() {
-        return mSkuDetails != null;
+        return mState.mSkuDetails != null;
     }
 
     @Nullable
     public String getTitle() {
-        return mSkuDetails != null ? mSkuDetails.getTitle() : null;
+        SkuDetails skuDetails = mState.mSkuDetails;
+        return skuDetails != null ? skuDetails.getTitle() : null;
     }
 
     @Nullable
     public String getDescription() {
-        return mSkuDetails != null ? mSkuDetails.getDescription() : null;
+        SkuDetails skuDetails = mState.mSkuDetails;
+        return skuDetails != null ? skuDetails.getDescription() : null;
     }
 
     @Nullable
     public String getPrice() {
-        return mSkuDetails != null ? mSkuDetails.getPrice() : null;
+        SkuDetails skuDetails = mState.mSkuDetails;
+        return skuDetails != null ? skuDetails.getPrice() : null;
     }
 
     public long getPriceAmount() {
-        return mSkuDetails != null ? mSkuDetails.getPriceAmountMicros() : 0;
+        SkuDetails skuDetails = mState.mSkuDetails;
+        return skuDetails != null ? skuDetails.getPriceAmountMicros() : 0;
     }
 
     @Nullable
     public String getCurrency() {
-        return mSkuDetails != null ? mSkuDetails.getPriceCurrencyCode() : null;
-    }
-
-    void setPurchaseToken(@Nullable String purchaseToken) {
-        mPurchaseToken = purchaseToken;
+        SkuDetails skuDetails = mState.mSkuDetails;
+        return skuDetails != null ? skuDetails.getPriceCurrencyCode() : null;
     }
 
     @Nullable
     public String getPurchaseToken() {
-        return mPurchaseToken;
-    }
-
-    void setPurchaseState(int purchaseState) {
-        switch (purchaseState) {
-            case Purchase.PurchaseState.PURCHASED:
-                mPurchaseState = PurchaseState.PURCHASED;
-                break;
-
-            case Purchase.PurchaseState.PENDING:
-                mPurchaseState = PurchaseState.PENDING;
-                break;
-
-            default:
-                mPurchaseState = PurchaseState.UNSPECIFIED;
-                break;
-        }
+        return mState.mPurchase.mPurchaseToken;
     }
 
     @NonNull
     public PurchaseState getPurchaseState() {
-        return mPurchaseState;
+        return mState.mPurchase.mPurchaseState;
     }
 
     public boolean isPurchased() {
-        return mAcknowledged && mPurchaseState == PurchaseState.PURCHASED;
+        PurchaseRecord purchase = mState.mPurchase;
+        return purchase.mAcknowledged && purchase.mPurchaseState == PurchaseState.PURCHASED;
     }
 
     public boolean isPending() {
-        return mPurchaseState == PurchaseState.PENDING ||
-                (!mAcknowledged && mPurchaseState == PurchaseState.PURCHASED);
+        PurchaseRecord purchase = mState.mPurchase;
+        return purchase.mPurchaseState == PurchaseState.PENDING ||
+                (!purchase.mAcknowledged && purchase.mPurchaseState == PurchaseState.PURCHASED);
     }
 
-    void setAcknowledged(boolean acknowledged) {
-        mAcknowledged = acknowledged;
+    public boolean isAcknowledged() {
+        return mState.mPurchase.mAcknowledged;
     }
 
-    public boolean isAcknowledged() {
-        return mAcknowledged;
+    @NonNull
+    PurchaseRecord getPurchaseRecord() {
+        return mState.mPurchase;
+    }
+
+    void setPurchaseRecord(@NonNull PurchaseRecord record) {
+        State state;
+        do {
+            state = mState;
+        } while (!STATE.compareAndSet(this, state, new State(state.mSkuDetails, record)));
+    }
+
+    private static final class State {
+        static final State EMPTY = new State(null, PurchaseRecord.NONE);
+
+        final SkuDetails mSkuDetails;
+        final PurchaseRecord mPurchase;
+
+        State(@Nullable SkuDetails skuDetails, @NonNull PurchaseRecord purchase) {
+            mSkuDetails = skuDetails;
+            mPurchase = purchase;
+        }
     }
 
     public enum Type {
         ONE_TIME,
         CONSUMABLE,
+        SUBSCRIPTION,
         ;
 
         @NonNull
@@ -153,6 +178,8 @@ public class Product {
                     return "ONE_TIME";
                 case CONSUMABLE:
                     return "CONSUMABLE";
+                case SUBSCRIPTION:
+                    return "SUBSCRIPTION";
             }
             return super.toString();
         }
@@ -163,6 +190,8 @@ public class Product {
                     return 0;
                 case CONSUMABLE:
                     return 1;
+                case SUBSCRIPTION:
+                    return 2;
             }
             return 0;
         }
@@ -173,9 +202,16 @@ public class Product {
                     return ONE_TIME;
                 case 1:
                     return CONSUMABLE;
+                case 2:
+                    return SUBSCRIPTION;
             }
             return ONE_TIME;
         }
+
+        @NonNull
+        String toSkuType() {
+            return this == SUBSCRIPTION ? BillingClient.SkuType.SUBS : BillingClient.SkuType.INAPP;
+        }
     }
 
     public enum PurchaseState {
@@ -221,5 +257,16 @@ public class Product {
             }
             return UNSPECIFIED;
         }
+
+        @NonNull
+        static PurchaseState fromBillingState(int purchaseState) {
+            switch (purchaseState) {
+                case Purchase.PurchaseState.PURCHASED:
+                    return PURCHASED;
+                case Purchase.PurchaseState.PENDING:
+                    return PENDING;
+            }
+            return UNSPECIFIED;
+        }
     }
 }
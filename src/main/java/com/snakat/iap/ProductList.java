@@ -3,26 +3,146 @@ package com.snakat.iap;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
 
 public class ProductList extends ArrayList<Product> {
 
+    private transient volatile Index mIndex;
+
     @Nullable
     public Product get(@NonNull String sku) {
-        for (Product product : this) {
-            if (sku.equals(product.getSku())) {
-                return product;
+        int index = indexOfSku(sku);
+        return index >= 0 ? get(index) : null;
+    }
+
+    public boolean contains(@NonNull String sku) {
+        return indexOfSku(sku) >= 0;
+    }
+
+    @Override
+    public boolean add(Product product) {
+        Index index = mIndex;
+        boolean indexed = index != null && index.mModCount == modCount;
+
+        super.add(product);
+
+        if (indexed) {
+            if (product != null && !index.mPositions.containsKey(product.getSku())) {
+                index.mPositions.put(product.getSku(), size() - 1);
             }
+            index.mModCount = modCount;
         }
-        return null;
+        return true;
     }
 
-    public boolean contains(@NonNull String sku) {
-        for (Product product : this) {
-            if (sku.equals(product.getSku())) {
-                return true;
+    @Override
+    public Product set(int index, Product product) {
+        Product previous = super.set(index, product);
+        mIndex = null;
+        return previous;
+    }
+
+    /**
+     * ArrayList's own sub list writes {@link #set} straight to the backing array, so the view is
+     * wrapped to drop the SKU index on every write through it.
+     */
+    @NonNull
+    @Override
+    public List<Product> subList(int fromIndex, int toIndex) {
+        return new SubList(super.subList(fromIndex, toIndex));
+    }
+
+    private int indexOfSku(@NonNull String sku) {
+        Index index = mIndex;
+        if (index == null || index.mModCount != modCount) {
+            index = buildIndex();
+        }
+
+        Integer position = index.mPositions.get(sku);
+        if (position == null) {
+            return -1;
+        }
+        if (position < size()) {
+            Product product = get(position);
+            if (product != null && sku.equals(product.getSku())) {
+                return position;
+            }
+        }
+
+        position = buildIndex().mPositions.get(sku);
+        return position != null ? position : -1;
+    }
+
+    @NonNull
+    private Index buildIndex() {
+        int size = size();
+        Index index = new Index(modCount, new HashMap<String, Integer>(Math.max(16, (int) (size / 0.75f) + 1)));
+        for (int i = 0; i < size; i++) {
+            Product product = get(i);
+            if (product != null && !index.mPositions.containsKey(product.getSku())) {
+                index.mPositions.put(product.getSku(), i);
             }
         }
-        return false;
+        mIndex = index;
+        return index;
+    }
+
+    private final class SubList extends AbstractList<Product> implements RandomAccess {
+        private final List<Product> mList;
+
+        SubList(@NonNull List<Product> list) {
+            mList = list;
+        }
+
+        @Override
+        public Product get(int index) {
+            return mList.get(index);
+        }
+
+        @Override
+        public int size() {
+            return mList.size();
+        }
+
+        @Override
+        public Product set(int index, Product product) {
+            Product previous = mList.set(index, product);
+            mIndex = null;
+            return previous;
+        }
+
+        @Override
+        public void add(int index, Product product) {
+            mList.add(index, product);
+            modCount++;
+        }
+
+        @Override
+        public Product remove(int index) {
+            Product previous = mList.remove(index);
+            modCount++;
+            return previous;
+        }
+
+        @Override
+        public void clear() {
+            mList.clear();
+            modCount++;
+        }
+    }
+
+    private static final class Index {
+        final Map<String, Integer> mPositions;
+        int mModCount;
+
+        Index(int modCount, @NonNull Map<String, Integer> positions) {
+            mModCount = modCount;
+            mPositions = positions;
+        }
     }
 }
@@ -0,0 +1,54 @@
+package com.snakat.iap;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+final class ProductStore {
+
+    private volatile Map<String, Product> mProducts = Collections.emptyMap();
+
+    @Nullable
+    Product get(@NonNull String sku) {
+        return mProducts.get(sku);
+    }
+
+    boolean containsKey(@NonNull String sku) {
+        return mProducts.containsKey(sku);
+    }
+
+    int size() {
+        return mProducts.size();
+    }
+
+    @NonNull
+    Collection<Product> values() {
+        return mProducts.values();
+    }
+
+    synchronized boolean putIfAbsent(@NonNull Product product) {
+        Map<String, Product> products = mProducts;
+        if (products.containsKey(product.getSku())) {
+            return false;
+        }
+
+        Map<String, Product> copy = new HashMap<>(products);
+        copy.put(product.getSku(), product);
+        mProducts = Collections.unmodifiableMap(copy);
+        return true;
+    }
+
+    synchronized void putAllIfAbsent(@NonNull Collection<Product> products) {
+        Map<String, Product> copy = new HashMap<>(mProducts);
+        for (Product product : products) {
+            if (!copy.containsKey(product.getSku())) {
+                copy.put(product.getSku(), product);
+            }
+        }
+        mProducts = Collections.unmodifiableMap(copy);
+    }
+}
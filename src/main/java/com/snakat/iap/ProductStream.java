@@ -0,0 +1,176 @@
+package com.snakat.iap;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.reactivex.Observable;
+import io.reactivex.ObservableSource;
+import io.reactivex.disposables.Disposable;
+import io.reactivex.functions.Action;
+import io.reactivex.functions.Consumer;
+import io.reactivex.functions.Function;
+import io.reactivex.subjects.PublishSubject;
+import io.reactivex.subjects.Subject;
+import io.reactivex.subjects.UnicastSubject;
+
+/**
+ * Publishes product snapshots as deltas: each event only carries the products that changed.
+ * Subscribers first get every current snapshot, then the deltas, and build their own view.
+ * <p>
+ * Snapshots are staged under the caller's locks and emitted later by {@link #flush()}, so
+ * subscribers never run while the library holds a lock.
+ */
+final class ProductStream {
+
+    private final Subject<Delta> mDeltas = PublishSubject.create();
+    private final Queue<Delta> mStaged = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger mFlushing = new AtomicInteger();
+
+    private final Map<String, Product> mSnapshots = new LinkedHashMap<>();
+    private long mSequence;
+
+    void publish(@NonNull Collection<Product> products) {
+        stage(products);
+        flush();
+    }
+
+    /**
+     * Takes snapshots of the products and queues them for the next {@link #flush()}. Runs no
+     * subscriber code, so it may be called while holding a lock.
+     */
+    void stage(@NonNull Collection<Product> products) {
+        if (products.isEmpty()) {
+            return;
+        }
+
+        List<Product> changes = new ArrayList<>(products.size());
+        for (Product product : products) {
+            changes.add(product.snapshot());
+        }
+
+        synchronized (this) {
+            for (Product snapshot : changes) {
+                mSnapshots.put(snapshot.getSku(), snapshot);
+            }
+            mStaged.offer(new Delta(++mSequence, changes));
+        }
+    }
+
+    /**
+     * Emits the staged deltas in the order they were staged. Subscribers run on the calling thread,
+     * so call it with no lock held.
+     */
+    void flush() {
+        if (mFlushing.getAndIncrement() != 0) {
+            return;
+        }
+
+        int missed = 1;
+        do {
+            Delta delta;
+            while ((delta = mStaged.poll()) != null) {
+                mDeltas.onNext(delta);
+            }
+            missed = mFlushing.addAndGet(-missed);
+        } while (missed != 0);
+    }
+
+    /**
+     * Every emission is a new ProductList holding the whole catalog, so each change costs
+     * O(catalog) per subscriber. Prefer {@link #observe(String)} for large catalogs.
+     */
+    @NonNull
+    Observable<ProductList> observeProducts() {
+        return Observable.defer(new Callable<Observable<ProductList>>() {
+            @Override
+            public Observable<ProductList> call() throws Exception {
+                Map<String, Product> view = new LinkedHashMap<>();
+                return changes().map(new Function<List<Product>, ProductList>() {
+                    @Override
+                    public ProductList apply(List<Product> changes) throws Exception {
+                        for (Product snapshot : changes) {
+                            view.put(snapshot.getSku(), snapshot);
+                        }
+                        ProductList products = new ProductList();
+                        products.addAll(view.values());
+                        return products;
+                    }
+                });
+            }
+        });
+    }
+
+    @NonNull
+    Observable<Product> observe(@NonNull String sku) {
+        return changes()
+                .concatMapIterable(new Function<List<Product>, Iterable<Product>>() {
+                    @Override
+                    public Iterable<Product> apply(List<Product> changes) throws Exception {
+                        for (int i = changes.size() - 1; i >= 0; i--) {
+                            Product snapshot = changes.get(i);
+                            if (snapshot.getSku().equals(sku)) {
+                                return Collections.singletonList(snapshot);
+                            }
+                        }
+                        return Collections.emptyList();
+                    }
+                });
+    }
+
+    /**
+     * Every current snapshot, then the deltas staged after it. Both are taken under the staging
+     * lock so no delta is missed or seen twice, but emitted outside of it.
+     */
+    @NonNull
+    private Observable<List<Product>> changes() {
+        return Observable.defer(new Callable<ObservableSource<List<Product>>>() {
+            @Override
+            public ObservableSource<List<Product>> call() throws Exception {
+                UnicastSubject<List<Product>> deltas = UnicastSubject.create();
+                List<Product> current;
+                Disposable disposable;
+                synchronized (ProductStream.this) {
+                    long sequence = mSequence;
+                    current = new ArrayList<>(mSnapshots.values());
+                    disposable = mDeltas.subscribe(new Consumer<Delta>() {
+                        @Override
+                        public void accept(Delta delta) throws Exception {
+                            if (delta.mSequence > sequence) {
+                                deltas.onNext(delta.mProducts);
+                            }
+                        }
+                    });
+                }
+
+                return Observable.just(current)
+                        .concatWith(deltas)
+                        .doOnDispose(new Action() {
+                            @Override
+                            public void run() throws Exception {
+                                disposable.dispose();
+                            }
+                        });
+            }
+        });
+    }
+
+    private static final class Delta {
+        final long mSequence;
+        final List<Product> mProducts;
+
+        Delta(long sequence, @NonNull List<Product> products) {
+            mSequence = sequence;
+            mProducts = products;
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package com.snakat.iap;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public final class PurchaseChangeSet {
+
+    private final List<Product> mAdded = new ArrayList<>();
+    private final List<Product> mUpdated = new ArrayList<>();
+    private final List<Product> mRemoved = new ArrayList<>();
+
+    PurchaseChangeSet() {
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return "(Added=" + mAdded + ", Updated=" + mUpdated + ", Removed=" + mRemoved + ")";
+    }
+
+    /**
+     * Records a snapshot of the product, so later changes to it do not leak into this set.
+     */
+    void add(@NonNull Product product, @Nullable PurchaseRecord previous, @NonNull PurchaseRecord current) {
+        Product snapshot = product.snapshot();
+        if (previous == null || previous.isNone()) {
+            mAdded.add(snapshot);
+        } else if (current.isNone()) {
+            mRemoved.add(snapshot);
+        } else {
+            mUpdated.add(snapshot);
+        }
+    }
+
+    @NonNull
+    public List<Product> getAdded() {
+        return Collections.unmodifiableList(mAdded);
+    }
+
+    @NonNull
+    public List<Product> getUpdated() {
+        return Collections.unmodifiableList(mUpdated);
+    }
+
+    @NonNull
+    public List<Product> getRemoved() {
+        return Collections.unmodifiableList(mRemoved);
+    }
+
+    public boolean isEmpty() {
+        return mAdded.isEmpty() && mUpdated.isEmpty() && mRemoved.isEmpty();
+    }
+
+    public int size() {
+        return mAdded.size() + mUpdated.size() + mRemoved.size();
+    }
+}
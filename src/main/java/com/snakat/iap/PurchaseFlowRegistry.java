@@ -0,0 +1,238 @@
+package com.snakat.iap;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.android.billingclient.api.AccountIdentifiers;
+import com.android.billingclient.api.Purchase;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.reactivex.MaybeEmitter;
+import io.reactivex.Scheduler;
+import io.reactivex.disposables.Disposable;
+import io.reactivex.functions.Cancellable;
+
+final class PurchaseFlowRegistry {
+
+    static final long DEFAULT_TIMEOUT = TimeUnit.MINUTES.toMillis(10);
+
+    private final Scheduler mScheduler;
+    private final AtomicLong mNextId = new AtomicLong();
+    private final Map<Long, Flow> mFlows = new LinkedHashMap<>();
+
+    private volatile long mTimeout = DEFAULT_TIMEOUT;
+
+    PurchaseFlowRegistry(@NonNull Scheduler scheduler) {
+        mScheduler = scheduler;
+    }
+
+    void setTimeout(long timeout) {
+        mTimeout = Math.max(0, timeout);
+    }
+
+    long getTimeout() {
+        return mTimeout;
+    }
+
+    synchronized int size() {
+        return mFlows.size();
+    }
+
+    @NonNull
+    Flow register(@NonNull String sku, @Nullable String obfuscatedAccountId, @Nullable String obfuscatedProfileId,
+                  @NonNull MaybeEmitter<Purchase> emitter) {
+        Flow flow = new Flow(mNextId.incrementAndGet(), sku, obfuscatedAccountId, obfuscatedProfileId, emitter);
+        synchronized (this) {
+            mFlows.put(flow.mId, flow);
+        }
+
+        long timeout = mTimeout;
+        if (timeout > 0) {
+            flow.mDeadline = mScheduler.scheduleDirect(new Runnable() {
+                @Override
+                public void run() {
+                    if (remove(flow)) {
+                        flow.fail(new IapError(IapError.Code.SERVICE_TIMEOUT,
+                                "Purchase flow for " + flow.mSku + " timed out."));
+                    }
+                }
+            }, timeout, TimeUnit.MILLISECONDS);
+        }
+
+        emitter.setCancellable(new Cancellable() {
+            @Override
+            public void cancel() throws Exception {
+                remove(flow);
+                flow.disposeDeadline();
+            }
+        });
+        return flow;
+    }
+
+    boolean unregister(@NonNull Flow flow) {
+        flow.disposeDeadline();
+        return remove(flow);
+    }
+
+    /**
+     * Hands the purchases to their flows and returns the ones no flow was waiting for, e.g. a
+     * purchase completed after its flow timed out or bought out of band.
+     */
+    @NonNull
+    List<Purchase> onPurchases(@NonNull List<Purchase> purchases) {
+        List<Flow> flows = new ArrayList<>();
+        List<Purchase> results = new ArrayList<>();
+        List<Purchase> unrouted = new ArrayList<>();
+
+        synchronized (this) {
+            for (Purchase purchase : purchases) {
+                boolean routed = false;
+                for (String sku : purchase.getSkus()) {
+                    Flow flow = match(sku, purchase.getAccountIdentifiers());
+                    if (flow != null) {
+                        mFlows.remove(flow.mId);
+                        flows.add(flow);
+                        results.add(purchase);
+                        routed = true;
+                    }
+                }
+                if (!routed) {
+                    unrouted.add(purchase);
+                }
+            }
+        }
+
+        for (int i = 0; i < flows.size(); i++) {
+            Flow flow = flows.get(i);
+            Purchase purchase = results.get(i);
+            flow.disposeDeadline();
+            if (purchase.getPurchaseState() == Purchase.PurchaseState.PURCHASED) {
+                flow.succeed(purchase);
+            } else {
+                flow.complete();
+            }
+        }
+        return unrouted;
+    }
+
+    /**
+     * Play Billing reports failures without saying which flow they belong to. Only one billing
+     * screen can be in front of the user at a time, so the error goes to the most recent flow.
+     */
+    void onError(@NonNull Throwable throwable) {
+        Flow flow = null;
+        synchronized (this) {
+            Iterator<Flow> iterator = mFlows.values().iterator();
+            while (iterator.hasNext()) {
+                flow = iterator.next();
+            }
+            if (flow != null) {
+                mFlows.remove(flow.mId);
+            }
+        }
+
+        if (flow != null) {
+            flow.disposeDeadline();
+            flow.fail(throwable);
+        }
+    }
+
+    /**
+     * Finds the flow with the same identifiers. A purchase without identifiers goes to the oldest
+     * flow for its SKU; one with identifiers matching no flow, e.g. bought out of band, goes to
+     * none.
+     */
+    @Nullable
+    private Flow match(@NonNull String sku, @Nullable AccountIdentifiers identifiers) {
+        boolean anonymous = identifiers == null ||
+                (identifiers.getObfuscatedAccountId() == null && identifiers.getObfuscatedProfileId() == null);
+        Flow oldest = null;
+        for (Flow flow : mFlows.values()) {
+            if (!flow.mSku.equals(sku)) {
+                continue;
+            }
+            if (!anonymous && flow.matches(identifiers)) {
+                return flow;
+            }
+            if (anonymous && oldest == null) {
+                oldest = flow;
+            }
+        }
+        return oldest;
+    }
+
+    private synchronized boolean remove(@NonNull Flow flow) {
+        return mFlows.remove(flow.mId) != null;
+    }
+
+    static final class Flow {
+        final long mId;
+        final String mSku;
+        final String mObfuscatedAccountId;
+        final String mObfuscatedProfileId;
+
+        private final MaybeEmitter<Purchase> mEmitter;
+        private final AtomicBoolean mDone = new AtomicBoolean();
+        private volatile Disposable mDeadline;
+
+        Flow(long id, @NonNull String sku, @Nullable String obfuscatedAccountId, @Nullable String obfuscatedProfileId,
+             @NonNull MaybeEmitter<Purchase> emitter) {
+            mId = id;
+            mSku = sku;
+            mObfuscatedAccountId = obfuscatedAccountId;
+            mObfuscatedProfileId = obfuscatedProfileId;
+            mEmitter = emitter;
+        }
+
+        boolean matches(@NonNull AccountIdentifiers identifiers) {
+            if (mObfuscatedAccountId == null && mObfuscatedProfileId == null) {
+                return false;
+            }
+            return equals(mObfuscatedAccountId, identifiers.getObfuscatedAccountId()) &&
+                    equals(mObfuscatedProfileId, identifiers.getObfuscatedProfileId());
+        }
+
+        void succeed(@NonNull Purchase purchase) {
+            if (mDone.compareAndSet(false, true)) {
+                mEmitter.onSuccess(purchase);
+            }
+        }
+
+        void complete() {
+            if (mDone.compareAndSet(false, true)) {
+                mEmitter.onComplete();
+            }
+        }
+
+        void fail(@NonNull Throwable throwable) {
+            if (mDone.compareAndSet(false, true)) {
+                mEmitter.tryOnError(throwable);
+            }
+        }
+
+        void disposeDeadline() {
+            Disposable deadline = mDeadline;
+            if (deadline != null) {
+                deadline.dispose();
+            }
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return "(" + mId + ", " + mSku + ")";
+        }
+
+        private static boolean equals(@Nullable String a, @Nullable String b) {
+            return a == null ? b == null : a.equals(b);
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package com.snakat.iap;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.android.billingclient.api.Purchase;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+final class PurchaseReconciler {
+
+    private final Map<String, PurchaseRecord> mRecords = new HashMap<>();
+
+    synchronized void seed(@NonNull String sku, @NonNull PurchaseRecord record) {
+        if (record.isNone()) {
+            mRecords.remove(sku);
+        } else {
+            mRecords.put(sku, record);
+        }
+    }
+
+    @Nullable
+    synchronized PurchaseRecord get(@NonNull String sku) {
+        return mRecords.get(sku);
+    }
+
+    @NonNull
+    synchronized List<Change> reconcile(@NonNull List<Purchase> purchaseList, boolean complete) {
+        Map<String, PurchaseRecord> records = new HashMap<>();
+        for (Purchase purchase : purchaseList) {
+            PurchaseRecord record = PurchaseRecord.from(purchase);
+            for (String sku : purchase.getSkus()) {
+                records.put(sku, record);
+            }
+        }
+
+        List<Change> changes = new ArrayList<>();
+        for (Map.Entry<String, PurchaseRecord> entry : records.entrySet()) {
+            PurchaseRecord previous = mRecords.put(entry.getKey(), entry.getValue());
+            if (!entry.getValue().equals(previous)) {
+                changes.add(new Change(entry.getKey(), previous, entry.getValue()));
+            }
+        }
+
+        if (complete) {
+            Iterator<Map.Entry<String, PurchaseRecord>> iterator = mRecords.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<String, PurchaseRecord> entry = iterator.next();
+                if (!records.containsKey(entry.getKey())) {
+                    iterator.remove();
+                    changes.add(new Change(entry.getKey(), entry.getValue(), PurchaseRecord.NONE));
+                }
+            }
+        }
+
+        return changes;
+    }
+
+    static final class Change {
+        final String mSku;
+        final PurchaseRecord mPrevious;
+        final PurchaseRecord mCurrent;
+
+        Change(@NonNull String sku, @Nullable PurchaseRecord previous, @NonNull PurchaseRecord current) {
+            mSku = sku;
+            mPrevious = previous;
+            mCurrent = current;
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package com.snakat.iap;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.android.billingclient.api.Purchase;
+
+final class PurchaseRecord {
+
+    static final PurchaseRecord NONE = new PurchaseRecord(null, Product.PurchaseState.UNSPECIFIED, false);
+
+    final String mPurchaseToken;
+    final Product.PurchaseState mPurchaseState;
+    final boolean mAcknowledged;
+
+    PurchaseRecord(@Nullable String purchaseToken, @NonNull Product.PurchaseState purchaseState, boolean acknowledged) {
+        mPurchaseToken = purchaseToken;
+        mPurchaseState = purchaseState;
+        mAcknowledged = acknowledged;
+    }
+
+    @NonNull
+    static PurchaseRecord from(@NonNull Purchase purchase) {
+        return new PurchaseRecord(
+                purchase.getPurchaseToken(),
+                Product.PurchaseState.fromBillingState(purchase.getPurchaseState()),
+                purchase.isAcknowledged());
+    }
+
+    boolean isNone() {
+        return mPurchaseToken == null && mPurchaseState == Product.PurchaseState.UNSPECIFIED && !mAcknowledged;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof PurchaseRecord)) {
+            return false;
+        }
+        PurchaseRecord record = (PurchaseRecord) o;
+        return mPurchaseState == record.mPurchaseState &&
+                mAcknowledged == record.mAcknowledged &&
+                (mPurchaseToken == null ? record.mPurchaseToken == null : mPurchaseToken.equals(record.mPurchaseToken));
+    }
+
+    @Override
+    public int hashCode() {
+        int result = mPurchaseToken != null ? mPurchaseToken.hashCode() : 0;
+        result = 31 * result + mPurchaseState.hashCode();
+        result = 31 * result + (mAcknowledged ? 1 : 0);
+        return result;
+    }
+}
@@ -1,6 +1,7 @@
 package com.snakat.iap;
 
 import android.app.Activity;
+import android.app.Application;
 import android.content.Context;
 
 import androidx.annotation.NonNull;
@@ -9,20 +10,28 @@ import androidx.annotation.Nullable;
 import com.android.billingclient.api.Purchase;
 import com.android.billingclient.api.SkuDetails;
 
+import org.reactivestreams.Publisher;
+
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
 
 import io.reactivex.Completable;
 import io.reactivex.CompletableEmitter;
 import io.reactivex.CompletableOnSubscribe;
 import io.reactivex.CompletableSource;
+import io.reactivex.Flowable;
 import io.reactivex.Maybe;
 import io.reactivex.MaybeSource;
 import io.reactivex.Observable;
+import io.reactivex.ObservableSource;
+import io.reactivex.Scheduler;
 import io.reactivex.Single;
 import io.reactivex.SingleSource;
-import io.reactivex.android.schedulers.AndroidSchedulers;
 import io.reactivex.functions.BiFunction;
 import io.reactivex.functions.Consumer;
 import io.reactivex.functions.Function;
@@ -48,9 +57,20 @@ public final class Purchaser extends PurchaserInternal {
     }
 
     public static void createInstance(@NonNull Context context, @Nullable ProductList products, boolean logEnabled) {
+        createInstance(new AndroidPlatform(context), products, logEnabled, PlayBillingBackend.factory(context));
+    }
+
+    /**
+     * Creates the instance on another platform and billing backend. Package-private so the
+     * backend, which speaks Play Billing listener types, stays out of the public API; the test
+     * fixtures reach it through JvmPlatform.
+     */
+    static void createInstance(@NonNull Platform platform, @Nullable ProductList products, boolean logEnabled,
+                               @NonNull BillingBackend.Factory backendFactory) {
         if (mInstance == null) {
             synchronized (Purchaser.class) {
-                mInstance = new Purchaser(context, products, logEnabled);
+                mInstance = new Purchaser(platform, products, logEnabled, backendFactory);
+                mInstance.refreshEntitlements();
             }
         }
     }
@@ -60,8 +80,12 @@ public final class Purchaser extends PurchaserInternal {
         mInstance = null;
     }
 
-    private Purchaser(@NonNull Context context, @Nullable ProductList products, boolean logEnabled) {
-        super(context, products, logEnabled);
+    Purchaser(@NonNull Context context, @Nullable ProductList products, boolean logEnabled, @NonNull BillingBackend.Factory backendFactory) {
+        super(context, products, logEnabled, backendFactory);
+    }
+
+    Purchaser(@NonNull Platform platform, @Nullable ProductList products, boolean logEnabled, @NonNull BillingBackend.Factory backendFactory) {
+        super(platform, products, logEnabled, backendFactory);
     }
 
     public void addProducts(@NonNull Product product, Product... others) {
@@ -77,6 +101,182 @@ public final class Purchaser extends PurchaserInternal {
         }
     }
 
+    public void setKeepConnectionAlive(boolean keepAlive) {
+        mConnection.setKeepAlive(keepAlive);
+    }
+
+    @NonNull
+    public Observable<ConnectionState> observeConnectionState() {
+        return deliver(mConnection.observeState());
+    }
+
+    public long getReconnectCount() {
+        return mConnection.getReconnectCount();
+    }
+
+    /**
+     * Disconnects from Google Play once no request has been running for {@code timeout}, and
+     * reconnects on the next one. 0, the default, keeps the connection open. Ignored while
+     * {@link #setKeepConnectionAlive keep alive} is on.
+     */
+    public void setIdleTimeout(long timeout, @NonNull TimeUnit unit) {
+        mConnection.setIdleTimeout(unit.toMillis(timeout));
+    }
+
+    /**
+     * Disconnects as soon as the connection is idle while no activity of the app is started, and
+     * does not reconnect in the background until a request needs it.
+     */
+    public void bindToProcessLifecycle(@NonNull Application application) {
+        bindLifecycle(application);
+    }
+
+    public void unbindFromProcessLifecycle() {
+        unbindLifecycle();
+    }
+
+    public long getIdleDisconnectCount() {
+        return mConnection.getIdleDisconnectCount();
+    }
+
+    public long getLastReconnectLatency() {
+        return mConnection.getLastReconnectLatency();
+    }
+
+    public long getAverageReconnectLatency() {
+        return mConnection.getAverageReconnectLatency();
+    }
+
+    public void setSkuDetailsCacheTtl(long duration, @NonNull TimeUnit unit) {
+        mSkuDetailsCache.setTtl(unit.toMillis(duration));
+    }
+
+    public void setSkuDetailsCacheMaxSize(int maxSize) {
+        mSkuDetailsCache.setMaxEntries(maxSize);
+    }
+
+    public double getSkuDetailsCacheHitRatio() {
+        return mSkuDetailsCache.getHitRatio();
+    }
+
+    public void clearSkuDetailsCache() {
+        mSkuDetailsCache.clear();
+    }
+
+    public void setSkuDetailsBatching(long window, @NonNull TimeUnit unit, int maxBatchSize) {
+        mSkuDetailsBatcher.setWindow(unit.toMillis(window));
+        mSkuDetailsBatcher.setMaxBatchSize(maxBatchSize);
+    }
+
+    public void setCatalogChunking(int chunkSize, int parallelism) {
+        mChunkSize = Math.max(1, chunkSize);
+        mChunkParallelism = Math.max(1, parallelism);
+    }
+
+    public void setBatchConcurrency(int concurrency) {
+        mBatchConcurrency = Math.max(1, concurrency);
+    }
+
+    /**
+     * Purchases that reach the app with no flow waiting for them, e.g. completed after their flow
+     * timed out or bought outside the app, are acknowledged automatically. Turn it off to
+     * acknowledge them yourself from {@link #observePurchaseChanges()}.
+     */
+    public void setAcknowledgeUnroutedPurchases(boolean enabled) {
+        mAcknowledgeUnrouted = enabled;
+    }
+
+    public void setOptimisticUpdates(boolean enabled) {
+        mOptimisticUpdates = enabled;
+    }
+
+    public void setOptimisticUpdates(boolean enabled, long reconcileDelay, @NonNull TimeUnit unit) {
+        mReconcileDelay = Math.max(0, unit.toMillis(reconcileDelay));
+        mOptimisticUpdates = enabled;
+    }
+
+    public long getOptimisticDriftCount() {
+        return getDriftCount();
+    }
+
+    public void setRetryPolicy(@NonNull RetryPolicy retryPolicy) {
+        mRetryPolicy = retryPolicy;
+    }
+
+    @NonNull
+    public RetryPolicy getRetryPolicy() {
+        return mRetryPolicy;
+    }
+
+    /**
+     * Sets the scheduler that processes billing responses and updates products. The work still
+     * runs one task at a time, whichever scheduler is used. Defaults to the computation scheduler.
+     */
+    public void setStateScheduler(@NonNull Scheduler scheduler) {
+        mStateExecutor.setTarget(scheduler);
+    }
+
+    /**
+     * Sets the scheduler results are delivered on, e.g. AndroidSchedulers.mainThread(). Defaults to
+     * the computation scheduler. With null, subscribers are called directly on the state scheduler
+     * and hold up billing work until they return.
+     */
+    public void setDeliveryScheduler(@Nullable Scheduler scheduler) {
+        mDeliveryScheduler = scheduler;
+    }
+
+    /**
+     * Sets how long a purchase flow waits for its result, 0 for ever. A flow that times out fails
+     * with {@link IapError.Code#SERVICE_TIMEOUT}, which does not mean nothing was bought: a slow or
+     * pending payment may still complete. It then shows up in {@link #observePurchaseChanges()}.
+     */
+    public void setPurchaseFlowTimeout(long timeout, @NonNull TimeUnit unit) {
+        mPurchaseFlows.setTimeout(unit.toMillis(timeout));
+    }
+
+    @NonNull
+    public IapMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    public long getSkuDetailsQueriesSaved() {
+        return mSkuDetailsFlights.getCoalescedCount();
+    }
+
+    public long getPurchasesQueriesSaved() {
+        return mPurchasesFlights.getCoalescedCount();
+    }
+
+    /**
+     * Prefetches every product in the background, see {@link #prefetch(List)}.
+     */
+    public void prefetch() {
+        prefetch(Collections.<String>emptyList());
+    }
+
+    public void prefetch(@NonNull String sku, String... others) {
+        List<String> skuList = new ArrayList<>(Arrays.asList(others));
+        skuList.add(0, sku);
+        prefetch(skuList);
+    }
+
+    /**
+     * Connects and loads the SkuDetails of {@code prioritySkus}, in order, then of the other
+     * products, so the first purchase does not wait for them. Stops under memory or battery
+     * pressure. A new call replaces the running prefetch.
+     */
+    public void prefetch(@NonNull List<String> prioritySkus) {
+        startPrefetch(prioritySkus);
+    }
+
+    public void cancelPrefetch() {
+        stopPrefetch();
+    }
+
+    public void clearEntitlements() {
+        mEntitlementStore.clear();
+    }
+
     @NonNull
     public Single<ProductList> getProducts(@NonNull String sku, String... others) {
         List<String> skuList = new ArrayList<>(Arrays.asList(others));
@@ -87,9 +287,61 @@ public final class Purchaser extends PurchaserInternal {
     @NonNull
     public Single<ProductList> getProducts(@NonNull List<String> skuList) {
         Single<ProductList> single = checkAllExist(skuList)
-                .andThen(startConnection())
+                .andThen(fetchProducts(skuList, false));
+
+        if (IapTrace.isEnabled(IapTrace.Level.DEBUG)) {
+            single = addLog("getProducts", single);
+        }
+
+        return deliver(single);
+    }
+
+    /**
+     * Returns the products according to {@code policy}. Fresh products are emitted once. Stale
+     * ones are emitted right away, then again once refreshed; a failed refresh is only logged.
+     * Otherwise the products are queried and emitted once.
+     */
+    @NonNull
+    public Observable<ProductList> getProducts(@NonNull List<String> skuList, @NonNull FreshnessPolicy policy) {
+        Observable<ProductList> observable = checkAllExist(skuList)
+                .andThen(Observable.defer(new Callable<ObservableSource<ProductList>>() {
+                    @Override
+                    public ObservableSource<ProductList> call() throws Exception {
+                        FreshnessPolicy.Action action = policy.decide(getProductsAge(skuList));
+                        IapTrace.d("getProducts", "Freshness: %s", action);
+
+                        switch (action) {
+                            case SERVE:
+                                return Observable.just(filterProducts(skuList));
+                            case SERVE_AND_REVALIDATE:
+                                return Observable.just(filterProducts(skuList))
+                                        .concatWith(fetchProducts(skuList, true)
+                                                .toObservable()
+                                                .onErrorResumeNext(new Function<Throwable, ObservableSource<ProductList>>() {
+                                                    @Override
+                                                    public ObservableSource<ProductList> apply(Throwable throwable) throws Exception {
+                                                        IapTrace.w("getProducts", throwable, "Revalidate failed with error: %s", throwable.getLocalizedMessage());
+                                                        return Observable.empty();
+                                                    }
+                                                }));
+                            default:
+                                return fetchProducts(skuList, true).toObservable();
+                        }
+                    }
+                }));
+
+        if (IapTrace.isEnabled(IapTrace.Level.DEBUG)) {
+            observable = addLog("getProducts", observable);
+        }
+
+        return deliver(observable);
+    }
+
+    @NonNull
+    private Single<ProductList> fetchProducts(@NonNull List<String> skuList, boolean bypassCache) {
+        Single<ProductList> single = startConnection()
                 .andThen(Observable.zip(
-                        querySkuDetailsAsync(skuList).toObservable(),
+                        queryChunkedSkuDetailsAsync(skuList, bypassCache).toObservable(),
                         queryPurchasesAsync().toObservable(),
                         new BiFunction<List<SkuDetails>, List<Purchase>, ProductList>() {
                             @Override
@@ -102,11 +354,72 @@ public final class Purchaser extends PurchaserInternal {
                         }
                 ).last(new ProductList()));
 
-        if (LOG_ENABLED) {
-            single = addLog("getProducts", single);
+        return mConnection.use(single);
+    }
+
+    @NonNull
+    public Flowable<ProductList> streamProducts(@NonNull List<String> skuList) {
+        Flowable<ProductList> flowable = checkAllExist(skuList)
+                .andThen(startConnection())
+                .andThen(Flowable.defer(new Callable<Publisher<ProductList>>() {
+                    @Override
+                    public Publisher<ProductList> call() throws Exception {
+                        Single<List<Purchase>> purchases = queryPurchasesAsync()
+                                .doOnSuccess(new Consumer<List<Purchase>>() {
+                                    @Override
+                                    public void accept(List<Purchase> purchaseList) throws Exception {
+                                        updatePurchases(purchaseList);
+                                    }
+                                })
+                                .cache();
+
+                        return chunkSkuList(skuList)
+                                .flatMapSingle(new Function<List<String>, SingleSource<ProductList>>() {
+                                    @Override
+                                    public SingleSource<ProductList> apply(List<String> chunk) throws Exception {
+                                        return Single.zip(
+                                                queryChunkAsync(chunk),
+                                                purchases,
+                                                new BiFunction<List<SkuDetails>, List<Purchase>, ProductList>() {
+                                                    @Override
+                                                    public ProductList apply(List<SkuDetails> skuDetailsList, List<Purchase> purchaseList) throws Exception {
+                                                        updateSkuDetails(skuDetailsList);
+
+                                                        return filterProducts(chunk);
+                                                    }
+                                                }
+                                        );
+                                    }
+                                }, false, mChunkParallelism);
+                    }
+                }));
+
+        flowable = mConnection.use(flowable);
+
+        if (IapTrace.isEnabled(IapTrace.Level.DEBUG)) {
+            flowable = addLog("streamProducts", flowable);
         }
 
-        return single;
+        return deliver(flowable);
+    }
+
+    /**
+     * Emits the whole catalog on every change. Each emission is a new list, so it costs O(catalog)
+     * per subscriber; {@link #observe(String)} only follows one product.
+     */
+    @NonNull
+    public Observable<ProductList> observeProducts() {
+        return deliver(mProductStream.observeProducts());
+    }
+
+    @NonNull
+    public Observable<Product> observe(@NonNull String sku) {
+        return deliver(mProductStream.observe(sku));
+    }
+
+    @NonNull
+    public Observable<PurchaseChangeSet> observePurchaseChanges() {
+        return deliver(mPurchaseChanges.hide());
     }
 
     @NonNull
@@ -116,13 +429,27 @@ public final class Purchaser extends PurchaserInternal {
 
     @NonNull
     public Maybe<Product> purchase(@NonNull Activity activity, @NonNull String sku, boolean autoAcknowledge) {
+        return purchase(activity, sku, null, null, autoAcknowledge);
+    }
+
+    @NonNull
+    public Maybe<Product> purchase(@NonNull Activity activity, @NonNull String sku,
+                                   @Nullable String obfuscatedAccountId, @Nullable String obfuscatedProfileId) {
+        return purchase(activity, sku, obfuscatedAccountId, obfuscatedProfileId, true);
+    }
+
+    @NonNull
+    public Maybe<Product> purchase(@NonNull Activity activity, @NonNull String sku,
+                                   @Nullable String obfuscatedAccountId, @Nullable String obfuscatedProfileId,
+                                   boolean autoAcknowledge) {
         Maybe<Product> maybe = startConnection()
                 .andThen(getSkuDetails(sku))
                 .flatMapMaybe(new Function<SkuDetails, MaybeSource<? extends Purchase>>() {
                     @Override
                     public MaybeSource<? extends Purchase> apply(SkuDetails skuDetails) throws Exception {
-                        return launchBillingFlow(activity, skuDetails)
-                                .subscribeOn(AndroidSchedulers.mainThread());
+                        return launchBillingFlow(activity, skuDetails, obfuscatedAccountId, obfuscatedProfileId)
+                                .subscribeOn(mPlatform.getMainThread())
+                                .observeOn(mStateScheduler);
                     }
                 })
                 .flatMapSingleElement(new Function<Purchase, SingleSource<? extends Product>>() {
@@ -135,37 +462,34 @@ public final class Purchaser extends PurchaserInternal {
                     }
                 });
 
-        if (LOG_ENABLED) {
+        maybe = mConnection.use(maybe);
+
+        if (IapTrace.isEnabled(IapTrace.Level.DEBUG)) {
             maybe = addLog("purchase", maybe);
         }
 
-        return maybe;
+        return deliver(maybe);
     }
 
     @NonNull
     public Single<Product> acknowledge(@NonNull String sku) {
         Single<Product> single = startConnection()
                 .andThen(getPurchaseToken(sku))
-                .flatMapCompletable(new Function<String, CompletableSource>() {
-                    @Override
-                    public CompletableSource apply(String purchaseToken) throws Exception {
-                        return acknowledgePurchase(purchaseToken);
-                    }
-                })
-                .andThen(queryPurchasesAsync())
-                .flatMap(new Function<List<Purchase>, SingleSource<Product>>() {
+                .flatMap(new Function<String, SingleSource<Product>>() {
                     @Override
-                    public SingleSource<Product> apply(List<Purchase> purchases) throws Exception {
-                        updatePurchases(purchases);
-                        return getProduct(sku);
+                    public SingleSource<Product> apply(String purchaseToken) throws Exception {
+                        return acknowledgePurchase(purchaseToken)
+                                .andThen(settlePurchase(sku, purchaseToken, false));
                     }
                 });
 
-        if (LOG_ENABLED) {
+        single = mConnection.use(single);
+
+        if (IapTrace.isEnabled(IapTrace.Level.DEBUG)) {
             single = addLog("acknowledge", single);
         }
 
-        return single;
+        return deliver(single);
     }
 
     @NonNull
@@ -176,23 +500,72 @@ public final class Purchaser extends PurchaserInternal {
                 .flatMapCompletable(new Function<String, CompletableSource>() {
                     @Override
                     public CompletableSource apply(String purchaseToken) throws Exception {
-                        return consumeAsync(purchaseToken);
+                        return consumeAsync(purchaseToken)
+                                .andThen(settlePurchase(sku, purchaseToken, true))
+                                .ignoreElement();
                     }
-                })
-                .andThen(queryPurchasesAsync())
-                .doOnSuccess(new Consumer<List<Purchase>>() {
+                });
+
+        completable = mConnection.use(completable);
+
+        if (IapTrace.isEnabled(IapTrace.Level.DEBUG)) {
+            completable = addLog("consume", completable);
+        }
+
+        return deliver(completable);
+    }
+
+    @NonNull
+    public Single<BatchResult> acknowledgeAll(@NonNull Collection<String> skuList) {
+        Single<BatchResult> single = startConnection()
+                .andThen(runBatch(skuList, new Function<String, Completable>() {
                     @Override
-                    public void accept(List<Purchase> purchases) throws Exception {
-                        updatePurchases(purchases);
+                    public Completable apply(String sku) throws Exception {
+                        return getPurchaseToken(sku)
+                                .flatMapCompletable(new Function<String, CompletableSource>() {
+                                    @Override
+                                    public CompletableSource apply(String purchaseToken) throws Exception {
+                                        return acknowledgePurchase(purchaseToken)
+                                                .andThen(settleLocally(sku, purchaseToken, false));
+                                    }
+                                });
                     }
-                })
-                .ignoreElement();
+                }));
 
-        if (LOG_ENABLED) {
-            completable = addLog("consume", completable);
+        single = mConnection.use(single);
+
+        if (IapTrace.isEnabled(IapTrace.Level.DEBUG)) {
+            single = addLog("acknowledgeAll", single);
+        }
+
+        return deliver(single);
+    }
+
+    @NonNull
+    public Single<BatchResult> consumeAll(@NonNull Collection<String> skuList) {
+        Single<BatchResult> single = startConnection()
+                .andThen(runBatch(skuList, new Function<String, Completable>() {
+                    @Override
+                    public Completable apply(String sku) throws Exception {
+                        return isConsumable(sku)
+                                .andThen(getPurchaseToken(sku))
+                                .flatMapCompletable(new Function<String, CompletableSource>() {
+                                    @Override
+                                    public CompletableSource apply(String purchaseToken) throws Exception {
+                                        return consumeAsync(purchaseToken)
+                                                .andThen(settleLocally(sku, purchaseToken, true));
+                                    }
+                                });
+                    }
+                }));
+
+        single = mConnection.use(single);
+
+        if (IapTrace.isEnabled(IapTrace.Level.DEBUG)) {
+            single = addLog("consumeAll", single);
         }
 
-        return completable;
+        return deliver(single);
     }
 
     @NonNull
@@ -208,13 +581,8 @@ public final class Purchaser extends PurchaserInternal {
                     public MaybeSource<? extends Product> apply(List<Purchase> purchaseList) throws Exception {
                         updatePurchases(purchaseList);
 
-                        for (Product product : mProducts.values()) {
-                            if (product.getPurchaseState() == Product.PurchaseState.PURCHASED &&
-                                    (product.isConsumable() || !product.isAcknowledged())) {
-                                return Maybe.just(product);
-                            }
-                        }
-                        return Maybe.empty();
+                        List<Product> products = findRestorableProducts();
+                        return products.isEmpty() ? Maybe.<Product>empty() : Maybe.just(products.get(0));
                     }
                 })
                 .flatMapSingleElement(new Function<Product, SingleSource<? extends Product>>() {
@@ -227,10 +595,43 @@ public final class Purchaser extends PurchaserInternal {
                     }
                 });
 
-        if (LOG_ENABLED) {
+        maybe = mConnection.use(maybe);
+
+        if (IapTrace.isEnabled(IapTrace.Level.DEBUG)) {
             maybe = addLog("restorePurchase", maybe);
         }
 
-        return maybe;
+        return deliver(maybe);
+    }
+
+    @NonNull
+    public Flowable<Product> restoreAllPurchases() {
+        return restoreAllPurchases(true, null);
+    }
+
+    @NonNull
+    public Flowable<Product> restoreAllPurchases(boolean autoAcknowledge) {
+        return restoreAllPurchases(autoAcknowledge, null);
+    }
+
+    @NonNull
+    public Flowable<Product> restoreAllPurchases(boolean autoAcknowledge, @Nullable Consumer<RestoreProgress> progress) {
+        Flowable<Product> flowable = startConnection()
+                .andThen(queryPurchasesAsync())
+                .flatMapPublisher(new Function<List<Purchase>, Publisher<? extends Product>>() {
+                    @Override
+                    public Publisher<? extends Product> apply(List<Purchase> purchaseList) throws Exception {
+                        updatePurchases(purchaseList);
+                        return restoreProducts(findRestorableProducts(), autoAcknowledge, progress);
+                    }
+                });
+
+        flowable = mConnection.use(flowable);
+
+        if (IapTrace.isEnabled(IapTrace.Level.DEBUG)) {
+            flowable = addLog("restoreAllPurchases", flowable);
+        }
+
+        return deliver(flowable);
     }
 }
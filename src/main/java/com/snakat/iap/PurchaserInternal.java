@@ -1,179 +1,441 @@
 package com.snakat.iap;
 
 import android.app.Activity;
+import android.app.Application;
 import android.content.Context;
-import android.util.Log;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.annotation.StringRes;
 
-import com.android.billingclient.api.AcknowledgePurchaseParams;
 import com.android.billingclient.api.AcknowledgePurchaseResponseListener;
 import com.android.billingclient.api.BillingClient;
-import com.android.billingclient.api.BillingClientStateListener;
-import com.android.billingclient.api.BillingFlowParams;
 import com.android.billingclient.api.BillingResult;
-import com.android.billingclient.api.ConsumeParams;
 import com.android.billingclient.api.ConsumeResponseListener;
 import com.android.billingclient.api.Purchase;
 import com.android.billingclient.api.PurchasesResponseListener;
 import com.android.billingclient.api.PurchasesUpdatedListener;
 import com.android.billingclient.api.SkuDetails;
-import com.android.billingclient.api.SkuDetailsParams;
 import com.android.billingclient.api.SkuDetailsResponseListener;
 
-import java.lang.ref.WeakReference;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscription;
+
+import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import io.reactivex.Completable;
 import io.reactivex.CompletableEmitter;
 import io.reactivex.CompletableOnSubscribe;
 import io.reactivex.CompletableSource;
+import io.reactivex.Flowable;
 import io.reactivex.Maybe;
 import io.reactivex.MaybeEmitter;
 import io.reactivex.MaybeOnSubscribe;
+import io.reactivex.Observable;
+import io.reactivex.Scheduler;
 import io.reactivex.Single;
 import io.reactivex.SingleEmitter;
 import io.reactivex.SingleOnSubscribe;
 import io.reactivex.SingleSource;
 import io.reactivex.disposables.Disposable;
+import io.reactivex.exceptions.CompositeException;
 import io.reactivex.functions.Action;
+import io.reactivex.functions.BiConsumer;
 import io.reactivex.functions.Consumer;
 import io.reactivex.functions.Function;
+import io.reactivex.schedulers.Schedulers;
+import io.reactivex.subjects.PublishSubject;
+import io.reactivex.subjects.Subject;
 
 abstract class PurchaserInternal {
 
-    static boolean LOG_ENABLED = true;
+    private static final String SKU_DETAILS_CACHE_FILE = "snakat_iap_sku_details";
+    private static final String ENTITLEMENT_SNAPSHOT_FILE = "snakat_iap_entitlements";
+
+    protected static final int DEFAULT_CHUNK_SIZE = 100;
+    protected static final int DEFAULT_CHUNK_PARALLELISM = 4;
+    protected static final int DEFAULT_BATCH_CONCURRENCY = 4;
+    protected static final long DEFAULT_RECONCILE_DELAY = TimeUnit.SECONDS.toMillis(5);
+
+    protected final Platform mPlatform;
+    protected final BillingBackend mBackend;
+    protected final BillingConnection mConnection;
+    protected final IapMetrics mMetrics = new IapMetrics();
+    protected final StateExecutor mStateExecutor = new StateExecutor(Schedulers.computation());
+    protected final Scheduler mStateScheduler = mStateExecutor.asScheduler();
+
+    protected final ProductStore mProducts = new ProductStore();
+    protected final SkuDetailsCache mSkuDetailsCache;
+    protected final EntitlementStore mEntitlementStore;
+    protected final PurchaseReconciler mPurchaseReconciler = new PurchaseReconciler();
+    protected final Subject<PurchaseChangeSet> mPurchaseChanges = PublishSubject.<PurchaseChangeSet>create().toSerialized();
+    protected final ProductStream mProductStream = new ProductStream();
+
+    protected final PurchaseFlowRegistry mPurchaseFlows = new PurchaseFlowRegistry(Schedulers.computation());
+
+    protected final SingleFlight<SkuDetails> mSkuDetailsFlights = new SingleFlight<>(new Function<Set<String>, Single<List<SkuDetails>>>() {
+        @Override
+        public Single<List<SkuDetails>> apply(Set<String> skus) throws Exception {
+            List<Single<List<SkuDetails>>> sources = new ArrayList<>();
+            for (Map.Entry<String, List<String>> entry : groupBySkuType(skus).entrySet()) {
+                sources.add(doQuerySkuDetailsAsync(entry.getKey(), entry.getValue()));
+            }
+            return mergeLists(sources);
+        }
+    });
+    protected final SingleFlight<Purchase> mPurchasesFlights = new SingleFlight<>(new Function<Set<String>, Single<List<Purchase>>>() {
+        @Override
+        public Single<List<Purchase>> apply(Set<String> skuTypes) throws Exception {
+            List<Single<List<Purchase>>> sources = new ArrayList<>();
+            for (String skuType : skuTypes) {
+                sources.add(doQueryPurchasesAsync(skuType));
+            }
+            return mergeLists(sources);
+        }
+    });
+    protected final SkuDetailsBatcher mSkuDetailsBatcher = new SkuDetailsBatcher(new Function<List<String>, Single<List<SkuDetails>>>() {
+        @Override
+        public Single<List<SkuDetails>> apply(List<String> skuList) throws Exception {
+            return querySkuDetailsAsync(skuList)
+                    .doOnSuccess(new Consumer<List<SkuDetails>>() {
+                        @Override
+                        public void accept(List<SkuDetails> skuDetailsList) throws Exception {
+                            updateSkuDetails(skuDetailsList);
+                        }
+                    });
+        }
+    }, Schedulers.computation());
 
-    protected static final String TAG = Purchaser.class.getName();
+    protected volatile int mChunkSize = DEFAULT_CHUNK_SIZE;
+    protected volatile int mChunkParallelism = DEFAULT_CHUNK_PARALLELISM;
+    protected volatile int mBatchConcurrency = DEFAULT_BATCH_CONCURRENCY;
+    protected volatile RetryPolicy mRetryPolicy = new RetryPolicy.Builder().build();
+    protected volatile Scheduler mDeliveryScheduler = Schedulers.computation();
 
-    protected final WeakReference<Context> mContext;
-    protected final BillingClient mBillingClient;
+    protected volatile boolean mHasSubscriptions = false;
+    protected volatile long mPurchasesVerifiedAt = 0;
+    protected volatile boolean mOptimisticUpdates = false;
+    protected volatile boolean mAcknowledgeUnrouted = true;
+    protected volatile long mReconcileDelay = DEFAULT_RECONCILE_DELAY;
 
-    protected final Map<String, Product> mProducts = Collections.synchronizedMap(new HashMap<>());
+    private final Set<String> mOptimisticSkus = new HashSet<>();
+    private final AtomicLong mDriftCount = new AtomicLong();
 
-    protected final List<CompletableEmitter> mConnectEmitters = Collections.synchronizedList(new ArrayList<>());
-    protected final Map<String, MaybeEmitter<Purchase>> mPurchaseEmitters = Collections.synchronizedMap(new HashMap<>());
+    private Disposable mRefreshDisposable;
+    private Disposable mPrefetchDisposable;
+    private Disposable mReconcileDisposable;
+    private ProcessLifecycleBinding mLifecycleBinding;
 
     protected PurchaserInternal(@NonNull Context context, @Nullable ProductList products, boolean logEnabled) {
-        LOG_ENABLED = logEnabled;
+        this(context, products, logEnabled, PlayBillingBackend.factory(context));
+    }
 
-        mContext = new WeakReference<>(context);
-        mBillingClient = BillingClient.newBuilder(context)
-                .setListener(new PurchasesUpdatedListener() {
-                    @Override
-                    public void onPurchasesUpdated(@NonNull BillingResult billingResult, @Nullable List<Purchase> purchases) {
-                        PurchaserInternal.this.onPurchasesUpdated(billingResult, purchases);
-                    }
-                })
-                .enablePendingPurchases()
-                .build();
+    protected PurchaserInternal(@NonNull Context context, @Nullable ProductList products, boolean logEnabled,
+                                @NonNull BillingBackend.Factory backendFactory) {
+        this(new AndroidPlatform(context), products, logEnabled, backendFactory);
+    }
+
+    protected PurchaserInternal(@NonNull Platform platform, @Nullable ProductList products, boolean logEnabled,
+                                @NonNull BillingBackend.Factory backendFactory) {
+        if (logEnabled) {
+            IapTrace.setLevel(IapTrace.Level.VERBOSE);
+        }
+
+        mPlatform = platform;
+        mBackend = backendFactory.create(new PurchasesUpdatedListener() {
+            @Override
+            public void onPurchasesUpdated(@NonNull BillingResult billingResult, @Nullable List<Purchase> purchases) {
+                PurchaserInternal.this.onPurchasesUpdated(billingResult, purchases);
+            }
+        });
+        mConnection = new BillingConnection(mBackend, Schedulers.computation(), mMetrics);
+        //noinspection ResultOfMethodCallIgnored
+        mConnection.observeState().subscribe(new Consumer<ConnectionState>() {
+            @Override
+            public void accept(ConnectionState state) throws Exception {
+                mMetrics.onConnectionState(state);
+            }
+        });
+
+        mSkuDetailsCache = new SkuDetailsCache(new File(platform.getCacheDir(), SKU_DETAILS_CACHE_FILE));
+        mSkuDetailsCache.load();
+
+        mEntitlementStore = new EntitlementStore(new File(platform.getFilesDir(), ENTITLEMENT_SNAPSHOT_FILE));
+        mEntitlementStore.load();
+
+        registerCounters();
 
         if (products != null) {
             for (Product product : products) {
-                mProducts.put(product.getSku(), product);
+                loadCachedSkuDetails(product);
+                loadPurchaseRecord(product);
+                if (product.isSubscription()) {
+                    mHasSubscriptions = true;
+                }
             }
+            mProducts.putAllIfAbsent(products);
+            mProductStream.publish(products);
         }
     }
 
+    private void registerCounters() {
+        mMetrics.register(IapMetrics.Counter.SKU_DETAILS_CACHE_HITS, new Callable<Long>() {
+            @Override
+            public Long call() throws Exception {
+                return mSkuDetailsCache.getHitCount();
+            }
+        });
+        mMetrics.register(IapMetrics.Counter.SKU_DETAILS_CACHE_MISSES, new Callable<Long>() {
+            @Override
+            public Long call() throws Exception {
+                return mSkuDetailsCache.getMissCount();
+            }
+        });
+        mMetrics.register(IapMetrics.Counter.SKU_DETAILS_QUERIES_COALESCED, new Callable<Long>() {
+            @Override
+            public Long call() throws Exception {
+                return mSkuDetailsFlights.getCoalescedCount();
+            }
+        });
+        mMetrics.register(IapMetrics.Counter.PURCHASES_QUERIES_COALESCED, new Callable<Long>() {
+            @Override
+            public Long call() throws Exception {
+                return mPurchasesFlights.getCoalescedCount();
+            }
+        });
+        mMetrics.register(IapMetrics.Counter.RETRIES, new Callable<Long>() {
+            @Override
+            public Long call() throws Exception {
+                return mRetryPolicy.getRetryCount();
+            }
+        });
+        mMetrics.register(IapMetrics.Counter.RECONNECTS, new Callable<Long>() {
+            @Override
+            public Long call() throws Exception {
+                return mConnection.getReconnectCount();
+            }
+        });
+        mMetrics.register(IapMetrics.Counter.IDLE_DISCONNECTS, new Callable<Long>() {
+            @Override
+            public Long call() throws Exception {
+                return mConnection.getIdleDisconnectCount();
+            }
+        });
+        mMetrics.register(IapMetrics.Counter.OPTIMISTIC_DRIFT, new Callable<Long>() {
+            @Override
+            public Long call() throws Exception {
+                return mDriftCount.get();
+            }
+        });
+    }
+
     protected void onPurchasesUpdated(@NonNull BillingResult billingResult, @Nullable List<Purchase> purchases) {
-        if (LOG_ENABLED) {
-            Log.i(TAG, String.format("On Purchases Updated: [result=%s] [purchases=%s]", billingResult, purchases == null ? "-" : purchases.size()));
+        mStateExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                processPurchasesUpdated(billingResult, purchases);
+            }
+        });
+    }
+
+    private void processPurchasesUpdated(@NonNull BillingResult billingResult, @Nullable List<Purchase> purchases) {
+        if (IapTrace.isEnabled(IapTrace.Level.INFO)) {
+            IapTrace.i("purchase", "On Purchases Updated: [result=%s] [purchases=%s]", billingResult, purchases == null ? "-" : purchases.size());
         }
 
         if (billingResult.getResponseCode() == BillingClient.BillingResponseCode.OK && purchases != null) {
-            updatePurchases(purchases);
+            mPurchasesFlights.invalidate();
+            reconcilePurchases(purchases, false);
+            acknowledgeUnrouted(mPurchaseFlows.onPurchases(purchases));
+        } else {
+            mPurchaseFlows.onError(new IapError(billingResult));
+        }
+    }
 
-            for (Purchase purchase : purchases) {
-                boolean isPurchased = purchase.getPurchaseState() == Purchase.PurchaseState.PURCHASED;
+    /**
+     * Acknowledges the purchases no flow was waiting for, which nobody else would. Google Play
+     * refunds a purchase that stays unacknowledged for three days.
+     */
+    private void acknowledgeUnrouted(@NonNull List<Purchase> purchases) {
+        if (!mAcknowledgeUnrouted) {
+            return;
+        }
 
-                for (String sku : purchase.getSkus()) {
-                    MaybeEmitter<Purchase> emitter = mPurchaseEmitters.remove(sku);
-                    if (emitter == null) {
-                        continue;
-                    }
-                    if (isPurchased) {
-                        emitter.onSuccess(purchase);
-                    } else {
-                        emitter.onComplete();
-                    }
-                }
+        for (Purchase purchase : purchases) {
+            if (purchase.getPurchaseState() != Purchase.PurchaseState.PURCHASED || purchase.isAcknowledged()) {
+                continue;
             }
-        } else {
-            for (MaybeEmitter<Purchase> emitter : mPurchaseEmitters.values()) {
-                emitter.onError(new IapError(billingResult));
+
+            String purchaseToken = purchase.getPurchaseToken();
+            Completable completable = acknowledgePurchase(purchaseToken);
+            for (String sku : purchase.getSkus()) {
+                if (mProducts.containsKey(sku)) {
+                    completable = completable.andThen(settlePurchase(sku, purchaseToken, false).ignoreElement());
+                    break;
+                }
             }
-            mPurchaseEmitters.clear();
+
+            IapTrace.i("purchase", "Acknowledging a purchase no flow was waiting for: %s", purchase.getSkus());
+            mConnection.use(startConnection().andThen(completable))
+                    .subscribeOn(Schedulers.io())
+                    .subscribe(new Action() {
+                        @Override
+                        public void run() throws Exception {
+                        }
+                    }, new Consumer<Throwable>() {
+                        @Override
+                        public void accept(Throwable throwable) throws Exception {
+                            IapTrace.w("purchase", throwable, "Acknowledge of an unrouted purchase failed with error: %s", throwable.getLocalizedMessage());
+                        }
+                    });
         }
     }
 
     protected void addProduct(@NonNull Product product) {
-        String sku = product.getSku();
-        if (mProducts.containsKey(sku)) {
+        if (mProducts.containsKey(product.getSku())) {
             return;
         }
-        mProducts.put(sku, product);
+        loadCachedSkuDetails(product);
+        synchronized (mPurchaseReconciler) {
+            loadPurchaseRecord(product);
+            if (!mProducts.putIfAbsent(product)) {
+                return;
+            }
+        }
+        if (product.isSubscription()) {
+            mHasSubscriptions = true;
+        }
+        mProductStream.publish(Collections.singletonList(product));
     }
 
+    private void loadPurchaseRecord(@NonNull Product product) {
+        PurchaseRecord record = mPurchaseReconciler.get(product.getSku());
+        if (record == null) {
+            record = mEntitlementStore.get(product);
+            if (record == null) {
+                return;
+            }
+            mPurchaseReconciler.seed(product.getSku(), record);
+        }
+        product.setPurchaseRecord(record);
+    }
+
+    private void loadCachedSkuDetails(@NonNull Product product) {
+        if (product.isLoaded()) {
+            return;
+        }
+        SkuDetails skuDetails = mSkuDetailsCache.get(product.getSku());
+        if (skuDetails != null) {
+            product.setSkuDetails(skuDetails);
+        }
+    }
+
+    /**
+     * Connects if needed. Wrap it together with the operations that follow in
+     * {@code mConnection.use(...)}, or the connection may go idle in between.
+     */
     protected Completable startConnection() {
-        return Completable.create(new CompletableOnSubscribe() {
-            @Override
-            public void subscribe(CompletableEmitter emitter) throws Exception {
-                if (mBillingClient.isReady()) {
-                    emitter.onComplete();
-                    return;
-                }
+        return mConnection.connect().observeOn(mStateScheduler);
+    }
 
-                mConnectEmitters.add(emitter);
+    @NonNull
+    protected <T> Single<T> deliver(@NonNull Single<T> single) {
+        Scheduler scheduler = mDeliveryScheduler;
+        return scheduler == null ? single : single.observeOn(scheduler);
+    }
 
-                if (mBillingClient.getConnectionState() != BillingClient.ConnectionState.CONNECTING) {
-                    mBillingClient.startConnection(new BillingClientStateListener() {
-                        @Override
-                        public void onBillingSetupFinished(@NonNull BillingResult billingResult) {
-                            if (billingResult.getResponseCode() == BillingClient.BillingResponseCode.OK) {
-                                Log.i(TAG, "BillingClient connected.");
-                                for (CompletableEmitter item : mConnectEmitters) {
-                                    item.onComplete();
-                                }
-                            } else {
-                                IapError iapError = new IapError(billingResult);
-                                if (LOG_ENABLED) {
-                                    Log.i(TAG, String.format("BillingClient failed to connect with error: %s", iapError));
-                                }
-                                for (CompletableEmitter item : mConnectEmitters) {
-                                    item.tryOnError(iapError);
-                                }
-                            }
+    @NonNull
+    protected <T> Maybe<T> deliver(@NonNull Maybe<T> maybe) {
+        Scheduler scheduler = mDeliveryScheduler;
+        return scheduler == null ? maybe : maybe.observeOn(scheduler);
+    }
 
-                            mConnectEmitters.clear();
-                        }
+    @NonNull
+    protected Completable deliver(@NonNull Completable completable) {
+        Scheduler scheduler = mDeliveryScheduler;
+        return scheduler == null ? completable : completable.observeOn(scheduler);
+    }
 
-                        @Override
-                        public void onBillingServiceDisconnected() {
-                        }
-                    });
-                }
+    @NonNull
+    protected <T> Flowable<T> deliver(@NonNull Flowable<T> flowable) {
+        Scheduler scheduler = mDeliveryScheduler;
+        return scheduler == null ? flowable : flowable.observeOn(scheduler);
+    }
+
+    @NonNull
+    protected <T> Observable<T> deliver(@NonNull Observable<T> observable) {
+        Scheduler scheduler = mDeliveryScheduler;
+        return scheduler == null ? observable : observable.observeOn(scheduler);
+    }
+
+    /**
+     * Splits SKUs by the type Google Play expects them to be queried with. Unknown SKUs are
+     * queried as in-app products.
+     */
+    @NonNull
+    private Map<String, List<String>> groupBySkuType(@NonNull Collection<String> skus) {
+        Map<String, List<String>> groups = new HashMap<>();
+        for (String sku : skus) {
+            Product product = mProducts.get(sku);
+            String skuType = product != null ? product.getType().toSkuType() : BillingClient.SkuType.INAPP;
+            List<String> group = groups.get(skuType);
+            if (group == null) {
+                group = new ArrayList<>();
+                groups.put(skuType, group);
             }
-        });
+            group.add(sku);
+        }
+        return groups;
+    }
+
+    /**
+     * Runs the queries in parallel and concatenates their results, so the total latency is the
+     * one of the slowest query.
+     */
+    @NonNull
+    private static <T> Single<List<T>> mergeLists(@NonNull List<Single<List<T>>> sources) {
+        if (sources.size() == 1) {
+            return sources.get(0);
+        }
+        return Single.merge(sources)
+                .collect(new Callable<List<T>>() {
+                    @Override
+                    public List<T> call() throws Exception {
+                        return new ArrayList<>();
+                    }
+                }, new BiConsumer<List<T>, List<T>>() {
+                    @Override
+                    public void accept(List<T> result, List<T> list) throws Exception {
+                        result.addAll(list);
+                    }
+                });
     }
 
     @NonNull
     protected Single<List<SkuDetails>> querySkuDetailsAsync(@NonNull List<String> skuList) {
+        return mSkuDetailsFlights.join(skuList);
+    }
+
+    @NonNull
+    private Single<List<SkuDetails>> doQuerySkuDetailsAsync(@NonNull String skuType, @NonNull List<String> skuList) {
         Single<List<SkuDetails>> single = Single.create(new SingleOnSubscribe<List<SkuDetails>>() {
             @Override
             public void subscribe(SingleEmitter<List<SkuDetails>> emitter) throws Exception {
-                SkuDetailsParams params = SkuDetailsParams.newBuilder()
-                        .setSkusList(skuList)
-                        .setType(BillingClient.SkuType.INAPP)
-                        .build();
-
-                mBillingClient.querySkuDetailsAsync(params, new SkuDetailsResponseListener() {
+                mBackend.querySkuDetails(skuType, skuList, new SkuDetailsResponseListener() {
                     @Override
                     public void onSkuDetailsResponse(@NonNull BillingResult billingResult, @Nullable List<SkuDetails> list) {
                         if (billingResult.getResponseCode() == BillingClient.BillingResponseCode.OK) {
@@ -184,21 +446,28 @@ abstract class PurchaserInternal {
                     }
                 });
             }
+        }).observeOn(mStateScheduler).retryWhen(mRetryPolicy.newHandler(startConnection())).doOnSuccess(new Consumer<List<SkuDetails>>() {
+            @Override
+            public void accept(List<SkuDetails> skuDetailsList) throws Exception {
+                mSkuDetailsCache.put(skuDetailsList);
+                saveSkuDetailsCache();
+            }
         });
 
-        if (LOG_ENABLED) {
+        single = mMetrics.time(IapMetrics.Operation.QUERY_SKU_DETAILS, mConnection.use(single));
+
+        if (IapTrace.isEnabled(IapTrace.Level.INFO)) {
             single = single
                     .doOnSuccess(new Consumer<List<SkuDetails>>() {
                         @Override
                         public void accept(List<SkuDetails> skuDetails) throws Exception {
-                            Log.i(TAG, String.format("Query SkuDetails done with %d item(s). ", skuDetails.size()));
+                            IapTrace.i("querySkuDetails", "Query SkuDetails done with %d item(s).", skuDetails.size());
                         }
                     })
                     .doOnError(new Consumer<Throwable>() {
                         @Override
                         public void accept(Throwable throwable) throws Exception {
-                            Log.i(TAG, String.format("Query SkuDetails failed with error: %s", throwable.getLocalizedMessage()));
-                            throwable.printStackTrace();
+                            IapTrace.w("querySkuDetails", throwable, "Query SkuDetails failed with error: %s", throwable.getLocalizedMessage());
                         }
                     });
         }
@@ -206,12 +475,113 @@ abstract class PurchaserInternal {
         return single;
     }
 
+    @NonNull
+    protected Single<List<SkuDetails>> queryCachedSkuDetailsAsync(@NonNull List<String> skuList) {
+        return Single.defer(new Callable<SingleSource<? extends List<SkuDetails>>>() {
+            @Override
+            public SingleSource<? extends List<SkuDetails>> call() throws Exception {
+                List<SkuDetails> cachedList = new ArrayList<>(skuList.size());
+                List<String> missingList = new ArrayList<>();
+                for (String sku : skuList) {
+                    SkuDetails skuDetails = mSkuDetailsCache.get(sku);
+                    if (skuDetails != null) {
+                        cachedList.add(skuDetails);
+                    } else {
+                        missingList.add(sku);
+                    }
+                }
+
+                if (IapTrace.isEnabled(IapTrace.Level.INFO)) {
+                    IapTrace.i("skuDetailsCache", "SkuDetails cache: %d hit(s), %d miss(es), hit ratio %.2f.",
+                            cachedList.size(), missingList.size(), mSkuDetailsCache.getHitRatio());
+                }
+
+                if (missingList.isEmpty()) {
+                    return Single.just(cachedList);
+                }
+                return querySkuDetailsAsync(missingList)
+                        .map(new Function<List<SkuDetails>, List<SkuDetails>>() {
+                            @Override
+                            public List<SkuDetails> apply(List<SkuDetails> skuDetailsList) throws Exception {
+                                List<SkuDetails> result = new ArrayList<>(cachedList.size() + skuDetailsList.size());
+                                result.addAll(cachedList);
+                                result.addAll(skuDetailsList);
+                                return result;
+                            }
+                        });
+            }
+        });
+    }
+
+    @NonNull
+    protected Single<List<SkuDetails>> queryChunkedSkuDetailsAsync(@NonNull List<String> skuList) {
+        return queryChunkedSkuDetailsAsync(skuList, false);
+    }
+
+    /**
+     * @param bypassCache query every SKU from Google Play, even those still fresh in the SkuDetails
+     *                    cache. The results are put back into the cache.
+     */
+    @NonNull
+    protected Single<List<SkuDetails>> queryChunkedSkuDetailsAsync(@NonNull List<String> skuList, boolean bypassCache) {
+        return chunkSkuList(skuList)
+                .flatMapSingle(new Function<List<String>, SingleSource<List<SkuDetails>>>() {
+                    @Override
+                    public SingleSource<List<SkuDetails>> apply(List<String> chunk) throws Exception {
+                        return bypassCache ? querySkuDetailsAsync(chunk) : queryChunkAsync(chunk);
+                    }
+                }, false, mChunkParallelism)
+                .collect(new Callable<List<SkuDetails>>() {
+                    @Override
+                    public List<SkuDetails> call() throws Exception {
+                        return new ArrayList<>(skuList.size());
+                    }
+                }, new BiConsumer<List<SkuDetails>, List<SkuDetails>>() {
+                    @Override
+                    public void accept(List<SkuDetails> result, List<SkuDetails> skuDetailsList) throws Exception {
+                        result.addAll(skuDetailsList);
+                    }
+                });
+    }
+
+    @NonNull
+    protected Flowable<List<String>> chunkSkuList(@NonNull List<String> skuList) {
+        return Flowable.defer(new Callable<Publisher<List<String>>>() {
+            @Override
+            public Publisher<List<String>> call() throws Exception {
+                int chunkSize = mChunkSize;
+                if (skuList.size() <= chunkSize) {
+                    return Flowable.just(skuList);
+                }
+
+                List<List<String>> chunks = new ArrayList<>((skuList.size() + chunkSize - 1) / chunkSize);
+                for (int i = 0; i < skuList.size(); i += chunkSize) {
+                    chunks.add(new ArrayList<>(skuList.subList(i, Math.min(i + chunkSize, skuList.size()))));
+                }
+                return Flowable.fromIterable(chunks);
+            }
+        });
+    }
+
+    @NonNull
+    protected Single<List<SkuDetails>> queryChunkAsync(@NonNull List<String> chunk) {
+        return queryCachedSkuDetailsAsync(chunk);
+    }
+
     @NonNull
     protected Single<List<Purchase>> queryPurchasesAsync() {
+        if (mHasSubscriptions) {
+            return mPurchasesFlights.join(Arrays.asList(BillingClient.SkuType.INAPP, BillingClient.SkuType.SUBS));
+        }
+        return mPurchasesFlights.join(Collections.singleton(BillingClient.SkuType.INAPP));
+    }
+
+    @NonNull
+    private Single<List<Purchase>> doQueryPurchasesAsync(@NonNull String skuType) {
         Single<List<Purchase>> single = Single.create(new SingleOnSubscribe<List<Purchase>>() {
             @Override
             public void subscribe(SingleEmitter<List<Purchase>> emitter) throws Exception {
-                mBillingClient.queryPurchasesAsync(BillingClient.SkuType.INAPP, new PurchasesResponseListener() {
+                mBackend.queryPurchases(skuType, new PurchasesResponseListener() {
                     @Override
                     public void onQueryPurchasesResponse(@NonNull BillingResult billingResult, @NonNull List<Purchase> list) {
                         if (billingResult.getResponseCode() == BillingClient.BillingResponseCode.OK) {
@@ -222,21 +592,22 @@ abstract class PurchaserInternal {
                     }
                 });
             }
-        });
+        }).observeOn(mStateScheduler).retryWhen(mRetryPolicy.newHandler(startConnection()));
+
+        single = mMetrics.time(IapMetrics.Operation.QUERY_PURCHASES, mConnection.use(single));
 
-        if (LOG_ENABLED) {
+        if (IapTrace.isEnabled(IapTrace.Level.INFO)) {
             single = single
                     .doOnSuccess(new Consumer<List<Purchase>>() {
                         @Override
                         public void accept(List<Purchase> purchases) throws Exception {
-                            Log.i(TAG, String.format("Query Purchases done with %d item(s).", purchases.size()));
+                            IapTrace.i("queryPurchases", "Query Purchases done with %d item(s).", purchases.size());
                         }
                     })
                     .doOnError(new Consumer<Throwable>() {
                         @Override
                         public void accept(Throwable throwable) throws Exception {
-                            Log.i(TAG, String.format("Query Purchases failed with error: %s", throwable.getLocalizedMessage()));
-                            throwable.printStackTrace();
+                            IapTrace.w("queryPurchases", throwable, "Query Purchases failed with error: %s", throwable.getLocalizedMessage());
                         }
                     });
         }
@@ -245,38 +616,36 @@ abstract class PurchaserInternal {
     }
 
     @NonNull
-    protected Maybe<Purchase> launchBillingFlow(@NonNull Activity activity, @NonNull SkuDetails skuDetails) {
+    protected Maybe<Purchase> launchBillingFlow(@NonNull Activity activity, @NonNull SkuDetails skuDetails,
+                                                @Nullable String obfuscatedAccountId, @Nullable String obfuscatedProfileId) {
         Maybe<Purchase> maybe = Maybe.create(new MaybeOnSubscribe<Purchase>() {
             @Override
             public void subscribe(MaybeEmitter<Purchase> emitter) throws Exception {
-                BillingFlowParams params = BillingFlowParams.newBuilder()
-                        .setSkuDetails(skuDetails)
-                        .build();
-                BillingResult billingResult = mBillingClient.launchBillingFlow(activity, params);
-                if (billingResult.getResponseCode() != BillingClient.BillingResponseCode.OK) {
-                    emitter.onError(new IapError(billingResult));
-                } else {
-                    mPurchaseEmitters.put(skuDetails.getSku(), emitter);
+                PurchaseFlowRegistry.Flow flow = mPurchaseFlows.register(skuDetails.getSku(), obfuscatedAccountId, obfuscatedProfileId, emitter);
+                BillingResult billingResult = mBackend.launchBillingFlow(activity, skuDetails, obfuscatedAccountId, obfuscatedProfileId);
+                if (billingResult.getResponseCode() != BillingClient.BillingResponseCode.OK && mPurchaseFlows.unregister(flow)) {
+                    flow.fail(new IapError(billingResult));
                 }
             }
         });
 
-        if (LOG_ENABLED) {
+        maybe = mMetrics.time(IapMetrics.Operation.LAUNCH_BILLING_FLOW, mConnection.use(maybe));
+
+        if (IapTrace.isEnabled(IapTrace.Level.INFO)) {
             maybe = maybe
                     .doOnSuccess(new Consumer<Purchase>() {
                         @Override
                         public void accept(Purchase purchase) throws Exception {
-                            Log.i(TAG, String.format("Purchase %s done with (%s, %b).",
+                            IapTrace.i("purchase", "Purchase %s done with (%s, %b).",
                                     skuDetails.getSku(),
-                                    purchase.getPurchaseState() == Purchase.PurchaseState.PURCHASED ? "PURCHASED" : (purchase.getPurchaseState() == Purchase.PurchaseState.PENDING ? "PENDING" : "UNSPECIFIED_STATE"),
-                                    purchase.isAcknowledged()));
+                                    Product.PurchaseState.fromBillingState(purchase.getPurchaseState()),
+                                    purchase.isAcknowledged());
                         }
                     })
                     .doOnError(new Consumer<Throwable>() {
                         @Override
                         public void accept(Throwable throwable) throws Exception {
-                            Log.i(TAG, String.format("Purchase failed with error: %s", throwable.getLocalizedMessage()));
-                            throwable.printStackTrace();
+                            IapTrace.w("purchase", throwable, "Purchase failed with error: %s", throwable.getLocalizedMessage());
                         }
                     });
         }
@@ -289,13 +658,11 @@ abstract class PurchaserInternal {
         Completable completable = Completable.create(new CompletableOnSubscribe() {
             @Override
             public void subscribe(CompletableEmitter emitter) throws Exception {
-                AcknowledgePurchaseParams params = AcknowledgePurchaseParams.newBuilder()
-                        .setPurchaseToken(purchaseToken)
-                        .build();
-                mBillingClient.acknowledgePurchase(params, new AcknowledgePurchaseResponseListener() {
+                mBackend.acknowledgePurchase(purchaseToken, new AcknowledgePurchaseResponseListener() {
                     @Override
                     public void onAcknowledgePurchaseResponse(@NonNull BillingResult billingResult) {
                         if (billingResult.getResponseCode() == BillingClient.BillingResponseCode.OK) {
+                            mPurchasesFlights.invalidate();
                             emitter.onComplete();
                         } else {
                             emitter.onError(new IapError(billingResult));
@@ -303,18 +670,20 @@ abstract class PurchaserInternal {
                     }
                 });
             }
-        });
+        }).observeOn(mStateScheduler).retryWhen(mRetryPolicy.newHandler(startConnection()));
+
+        completable = mMetrics.time(IapMetrics.Operation.ACKNOWLEDGE_PURCHASE, mConnection.use(completable));
 
-        if (LOG_ENABLED) {
+        if (IapTrace.isEnabled(IapTrace.Level.INFO)) {
             completable = completable.doOnComplete(new Action() {
                 @Override
                 public void run() throws Exception {
-                    Log.i(TAG, "Acknowledge done.");
+                    IapTrace.i("acknowledge", "Acknowledge done.");
                 }
             }).doOnError(new Consumer<Throwable>() {
                 @Override
                 public void accept(Throwable throwable) throws Exception {
-                    Log.i(TAG, String.format("Acknowledge failed. %s", throwable.getLocalizedMessage()));
+                    IapTrace.w("acknowledge", throwable, "Acknowledge failed. %s", throwable.getLocalizedMessage());
                 }
             });
         }
@@ -322,37 +691,53 @@ abstract class PurchaserInternal {
         return completable;
     }
 
+    /**
+     * Consume is not idempotent: an attempt that failed may still have gone through, and the retry
+     * then gets ITEM_NOT_OWNED. That answer on a retry is taken as success.
+     */
     @NonNull
     protected Completable consumeAsync(@NonNull String purchaseToken) {
-        Completable completable = Completable.create(new CompletableOnSubscribe() {
+        Completable completable = Completable.defer(new Callable<CompletableSource>() {
             @Override
-            public void subscribe(CompletableEmitter emitter) throws Exception {
-                ConsumeParams params = ConsumeParams.newBuilder()
-                        .setPurchaseToken(purchaseToken)
-                        .build();
-                mBillingClient.consumeAsync(params, new ConsumeResponseListener() {
+            public CompletableSource call() throws Exception {
+                AtomicBoolean attempted = new AtomicBoolean();
+                return Completable.create(new CompletableOnSubscribe() {
                     @Override
-                    public void onConsumeResponse(@NonNull BillingResult billingResult, @NonNull String purchaseToken) {
-                        if (billingResult.getResponseCode() == BillingClient.BillingResponseCode.OK) {
-                            emitter.onComplete();
-                        } else {
-                            emitter.onError(new IapError(billingResult));
-                        }
+                    public void subscribe(CompletableEmitter emitter) throws Exception {
+                        boolean retry = attempted.getAndSet(true);
+                        mBackend.consume(purchaseToken, new ConsumeResponseListener() {
+                            @Override
+                            public void onConsumeResponse(@NonNull BillingResult billingResult, @NonNull String purchaseToken) {
+                                int responseCode = billingResult.getResponseCode();
+                                if (retry && responseCode == BillingClient.BillingResponseCode.ITEM_NOT_OWNED) {
+                                    IapTrace.i("consume", "Consume retry found the purchase already consumed.");
+                                    responseCode = BillingClient.BillingResponseCode.OK;
+                                }
+                                if (responseCode == BillingClient.BillingResponseCode.OK) {
+                                    mPurchasesFlights.invalidate();
+                                    emitter.onComplete();
+                                } else {
+                                    emitter.onError(new IapError(billingResult));
+                                }
+                            }
+                        });
                     }
-                });
+                }).observeOn(mStateScheduler).retryWhen(mRetryPolicy.newHandler(startConnection()));
             }
         });
 
-        if (LOG_ENABLED) {
+        completable = mMetrics.time(IapMetrics.Operation.CONSUME, mConnection.use(completable));
+
+        if (IapTrace.isEnabled(IapTrace.Level.INFO)) {
             completable = completable.doOnComplete(new Action() {
                 @Override
                 public void run() throws Exception {
-                    Log.i(TAG, "Consume done.");
+                    IapTrace.i("consume", "Consume done.");
                 }
             }).doOnError(new Consumer<Throwable>() {
                 @Override
                 public void accept(Throwable throwable) throws Exception {
-                    Log.i(TAG, String.format("Consume failed. %s", throwable.getLocalizedMessage()));
+                    IapTrace.w("consume", throwable, "Consume failed. %s", throwable.getLocalizedMessage());
                 }
             });
         }
@@ -360,9 +745,172 @@ abstract class PurchaserInternal {
         return completable;
     }
 
+    protected void refreshEntitlements() {
+        if (mEntitlementStore.isEmpty()) {
+            return;
+        }
+
+        mRefreshDisposable = mConnection.use(startConnection().andThen(queryPurchasesAsync()))
+                .subscribeOn(Schedulers.io())
+                .subscribe(new Consumer<List<Purchase>>() {
+                    @Override
+                    public void accept(List<Purchase> purchases) throws Exception {
+                        updatePurchases(purchases);
+                    }
+                }, new Consumer<Throwable>() {
+                    @Override
+                    public void accept(Throwable throwable) throws Exception {
+                        IapTrace.w("refreshEntitlements", throwable, "Refresh entitlements failed with error: %s", throwable.getLocalizedMessage());
+                    }
+                });
+    }
+
+    /**
+     * Warms up the connection and the catalog in the background: {@code prioritySkus} first, in
+     * order, then every other product. Runs one chunk at a time and stops as soon as the device is
+     * short on memory or battery. Foreground calls join the queries still in flight.
+     */
+    protected void startPrefetch(@NonNull List<String> prioritySkus) {
+        Set<String> priority = new LinkedHashSet<>();
+        for (String sku : prioritySkus) {
+            if (mProducts.containsKey(sku)) {
+                priority.add(sku);
+            }
+        }
+        List<String> others = new ArrayList<>();
+        for (Product product : mProducts.values()) {
+            if (!priority.contains(product.getSku())) {
+                others.add(product.getSku());
+            }
+        }
+
+        AtomicBoolean stopped = new AtomicBoolean();
+        Completable prefetch = startConnection()
+                .andThen(chunkSkuList(new ArrayList<>(priority)).concatWith(chunkSkuList(others)))
+                .concatMapCompletable(new Function<List<String>, CompletableSource>() {
+                    @Override
+                    public CompletableSource apply(List<String> chunk) throws Exception {
+                        if (stopped.get()) {
+                            return Completable.complete();
+                        }
+                        if (mPlatform.isUnderPressure()) {
+                            stopped.set(true);
+                            IapTrace.i("prefetch", "Prefetch stopped under memory or battery pressure.");
+                            return Completable.complete();
+                        }
+                        return prefetchChunk(chunk)
+                                .doOnError(new Consumer<Throwable>() {
+                                    @Override
+                                    public void accept(Throwable throwable) throws Exception {
+                                        IapTrace.w("prefetch", throwable, "Prefetch of %d SKU(s) failed with error: %s", chunk.size(), throwable.getLocalizedMessage());
+                                    }
+                                })
+                                .onErrorComplete();
+                    }
+                });
+
+        Disposable disposable = mConnection.use(prefetch)
+                .subscribeOn(Schedulers.io())
+                .subscribe(new Action() {
+                    @Override
+                    public void run() throws Exception {
+                        IapTrace.d("prefetch", "Prefetch done.");
+                    }
+                }, new Consumer<Throwable>() {
+                    @Override
+                    public void accept(Throwable throwable) throws Exception {
+                        IapTrace.w("prefetch", throwable, "Prefetch failed with error: %s", throwable.getLocalizedMessage());
+                    }
+                });
+
+        synchronized (this) {
+            if (mPrefetchDisposable != null) {
+                mPrefetchDisposable.dispose();
+            }
+            mPrefetchDisposable = disposable;
+        }
+    }
+
+    protected synchronized void stopPrefetch() {
+        if (mPrefetchDisposable != null) {
+            mPrefetchDisposable.dispose();
+            mPrefetchDisposable = null;
+        }
+    }
+
+    protected synchronized void bindLifecycle(@NonNull Application application) {
+        unbindLifecycle();
+        mLifecycleBinding = new ProcessLifecycleBinding(application, mConnection);
+        mLifecycleBinding.bind();
+    }
+
+    protected synchronized void unbindLifecycle() {
+        if (mLifecycleBinding != null) {
+            mLifecycleBinding.unbind();
+            mLifecycleBinding = null;
+        }
+    }
+
+    @NonNull
+    private Completable prefetchChunk(@NonNull List<String> chunk) {
+        return queryCachedSkuDetailsAsync(chunk)
+                .doOnSuccess(new Consumer<List<SkuDetails>>() {
+                    @Override
+                    public void accept(List<SkuDetails> skuDetailsList) throws Exception {
+                        updateSkuDetails(skuDetailsList);
+                    }
+                })
+                .ignoreElement();
+    }
+
     protected void endConnection() {
-        mBillingClient.endConnection();
-        mContext.clear();
+        if (mRefreshDisposable != null) {
+            mRefreshDisposable.dispose();
+            mRefreshDisposable = null;
+        }
+        stopPrefetch();
+        unbindLifecycle();
+        synchronized (mOptimisticSkus) {
+            if (mReconcileDisposable != null) {
+                mReconcileDisposable.dispose();
+                mReconcileDisposable = null;
+            }
+        }
+        mConnection.end();
+        mPlatform.release();
+    }
+
+    /**
+     * Returns the age in milliseconds of the given products for a {@link FreshnessPolicy}: the
+     * oldest of their SkuDetails and of the last purchases query. Returns -1 when some product is
+     * not loaded and {@link Long#MAX_VALUE} when the age is unknown.
+     */
+    protected long getProductsAge(@NonNull List<String> skuList) {
+        long now = System.currentTimeMillis();
+        long oldest = mPurchasesVerifiedAt;
+        if (oldest == 0) {
+            oldest = mEntitlementStore.getSavedAt();
+        }
+
+        boolean unknown = oldest == 0;
+
+        for (String sku : skuList) {
+            Product product = mProducts.get(sku);
+            if (product == null || !product.isLoaded()) {
+                return -1;
+            }
+            long savedAt = mSkuDetailsCache.getSavedAt(sku);
+            if (savedAt == 0) {
+                unknown = true;
+            } else {
+                oldest = oldest == 0 ? savedAt : Math.min(oldest, savedAt);
+            }
+        }
+
+        if (unknown || oldest > now) {
+            return Long.MAX_VALUE;
+        }
+        return now - oldest;
     }
 
     @NonNull
@@ -371,7 +919,7 @@ abstract class PurchaserInternal {
         for (String sku : skuList) {
             Product product = mProducts.get(sku);
             if (product == null) {
-                throw new IapError(IapError.Code.ITEM_UNAVAILABLE, mContext.get().getString(R.string.product_not_found, sku));
+                throw new IapError(IapError.Code.ITEM_UNAVAILABLE, mPlatform.getString(R.string.product_not_found, sku));
             }
             if (product.isLoaded()) {
                 products.add(product);
@@ -381,51 +929,338 @@ abstract class PurchaserInternal {
     }
 
     protected void updateSkuDetails(@NonNull List<SkuDetails> skuDetailsList) {
+        List<Product> changed = new ArrayList<>(skuDetailsList.size());
         for (SkuDetails skuDetails : skuDetailsList) {
             String sku = skuDetails.getSku();
             Product product = mProducts.get(sku);
-            if (product == null) {
+            if (product == null || product.getSkuDetails() == skuDetails) {
                 continue;
             }
 
             product.setSkuDetails(skuDetails);
+            changed.add(product);
         }
+
+        mProductStream.publish(changed);
     }
 
-    protected void updatePurchases(@NonNull List<Purchase> purchaseList) {
-        for (Product product : mProducts.values()) {
-            product.setPurchaseToken(null);
-            product.setAcknowledged(false);
-            product.setPurchaseState(Purchase.PurchaseState.UNSPECIFIED_STATE);
+    private void saveSkuDetailsCache() {
+        runInBackground("Save SkuDetails cache", new Action() {
+            @Override
+            public void run() throws Exception {
+                mSkuDetailsCache.save();
+            }
+        });
+    }
+
+    private void saveEntitlements() {
+        runInBackground("Save entitlements", new Action() {
+            @Override
+            public void run() throws Exception {
+                mEntitlementStore.save();
+            }
+        });
+    }
+
+    private void runInBackground(@NonNull String title, @NonNull Action action) {
+        Completable.fromAction(action)
+                .subscribeOn(Schedulers.io())
+                .subscribe(new Action() {
+                    @Override
+                    public void run() throws Exception {
+                    }
+                }, new Consumer<Throwable>() {
+                    @Override
+                    public void accept(Throwable throwable) throws Exception {
+                        IapTrace.w("background", throwable, "%s failed with error: %s", title, throwable.getLocalizedMessage());
+                    }
+                });
+    }
+
+    @NonNull
+    protected PurchaseChangeSet updatePurchases(@NonNull List<Purchase> purchaseList) {
+        mPurchasesVerifiedAt = System.currentTimeMillis();
+        return reconcilePurchases(purchaseList, true);
+    }
+
+    @NonNull
+    protected PurchaseChangeSet reconcilePurchases(@NonNull List<Purchase> purchaseList, boolean complete) {
+        PurchaseChangeSet changeSet = new PurchaseChangeSet();
+        List<Product> changed = new ArrayList<>();
+        synchronized (mPurchaseReconciler) {
+            for (PurchaseReconciler.Change change : mPurchaseReconciler.reconcile(purchaseList, complete)) {
+                Product product = mProducts.get(change.mSku);
+                if (product == null) {
+                    continue;
+                }
+                product.setPurchaseRecord(change.mCurrent);
+                mEntitlementStore.update(product);
+                changeSet.add(product, change.mPrevious, change.mCurrent);
+                changed.add(product);
+            }
+            mProductStream.stage(changed);
         }
+        mProductStream.flush();
 
-        for (Purchase purchase : purchaseList) {
-            updatePurchase(purchase);
+        if (!changeSet.isEmpty()) {
+            IapTrace.i("reconcile", "Purchases changed: %s", changeSet);
+            saveEntitlements();
+            mPurchaseChanges.onNext(changeSet);
         }
+        return changeSet;
     }
 
-    protected void updatePurchase(@NonNull Purchase purchase) {
-        for (String sku : purchase.getSkus()) {
-            Product product = mProducts.get(sku);
-            if (product == null) {
-                continue;
+    protected void applyPurchaseRecord(@NonNull Product product, @NonNull PurchaseRecord record) {
+        PurchaseChangeSet changeSet = new PurchaseChangeSet();
+        synchronized (mPurchaseReconciler) {
+            PurchaseRecord previous = product.getPurchaseRecord();
+            if (previous.equals(record)) {
+                return;
             }
-            product.setPurchaseToken(purchase.getPurchaseToken());
-            product.setAcknowledged(purchase.isAcknowledged());
-            product.setPurchaseState(purchase.getPurchaseState());
+            mPurchaseReconciler.seed(product.getSku(), record);
+            product.setPurchaseRecord(record);
+            mEntitlementStore.update(product);
+            changeSet.add(product, previous, record);
+            mProductStream.stage(Collections.singletonList(product));
+        }
+        mProductStream.flush();
+
+        saveEntitlements();
+        mPurchaseChanges.onNext(changeSet);
+    }
+
+    @NonNull
+    protected Single<Product> settlePurchase(@NonNull String sku, @NonNull String purchaseToken, boolean consumed) {
+        if (mOptimisticUpdates) {
+            return getProduct(sku)
+                    .doOnSuccess(new Consumer<Product>() {
+                        @Override
+                        public void accept(Product product) throws Exception {
+                            applySettledPurchase(product, purchaseToken, consumed);
+                        }
+                    });
         }
+
+        return queryPurchasesAsync()
+                .flatMap(new Function<List<Purchase>, SingleSource<Product>>() {
+                    @Override
+                    public SingleSource<Product> apply(List<Purchase> purchases) throws Exception {
+                        updatePurchases(purchases);
+                        return getProduct(sku);
+                    }
+                });
+    }
+
+    @NonNull
+    protected Completable settleLocally(@NonNull String sku, @NonNull String purchaseToken, boolean consumed) {
+        if (!mOptimisticUpdates) {
+            return Completable.complete();
+        }
+        return settlePurchase(sku, purchaseToken, consumed).ignoreElement();
+    }
+
+    /**
+     * Applies the state a successful acknowledge or consume is known to produce. In optimistic
+     * mode the SKU is also queued for a lazy reconciliation against Google Play.
+     */
+    protected void applySettledPurchase(@NonNull Product product, @NonNull String purchaseToken, boolean consumed) {
+        PurchaseRecord record = product.getPurchaseRecord();
+        if (!purchaseToken.equals(record.mPurchaseToken)) {
+            return;
+        }
+        applyPurchaseRecord(product, consumed ? PurchaseRecord.NONE : new PurchaseRecord(purchaseToken, record.mPurchaseState, true));
+
+        if (mOptimisticUpdates) {
+            synchronized (mOptimisticSkus) {
+                mOptimisticSkus.add(product.getSku());
+            }
+            scheduleReconciliation();
+        }
+    }
+
+    private void scheduleReconciliation() {
+        synchronized (mOptimisticSkus) {
+            if (mReconcileDisposable != null || mOptimisticSkus.isEmpty()) {
+                return;
+            }
+
+            mReconcileDisposable = Completable.timer(mReconcileDelay, TimeUnit.MILLISECONDS, Schedulers.io())
+                    .andThen(Single.defer(new Callable<SingleSource<Integer>>() {
+                        @Override
+                        public SingleSource<Integer> call() throws Exception {
+                            Set<String> skus;
+                            synchronized (mOptimisticSkus) {
+                                skus = new HashSet<>(mOptimisticSkus);
+                                mOptimisticSkus.clear();
+                            }
+
+                            return mConnection.use(startConnection().andThen(queryPurchasesAsync()))
+                                    .map(new Function<List<Purchase>, Integer>() {
+                                        @Override
+                                        public Integer apply(List<Purchase> purchases) throws Exception {
+                                            return countDrift(updatePurchases(purchases), skus);
+                                        }
+                                    })
+                                    .doOnError(new Consumer<Throwable>() {
+                                        @Override
+                                        public void accept(Throwable throwable) throws Exception {
+                                            synchronized (mOptimisticSkus) {
+                                                mOptimisticSkus.addAll(skus);
+                                            }
+                                        }
+                                    });
+                        }
+                    }))
+                    .subscribe(new Consumer<Integer>() {
+                        @Override
+                        public void accept(Integer drift) throws Exception {
+                            synchronized (mOptimisticSkus) {
+                                mReconcileDisposable = null;
+                            }
+                            if (drift > 0) {
+                                mDriftCount.addAndGet(drift);
+                                IapTrace.i("reconcile", "Optimistic state drifted for %d product(s).", drift);
+                            }
+                            scheduleReconciliation();
+                        }
+                    }, new Consumer<Throwable>() {
+                        @Override
+                        public void accept(Throwable throwable) throws Exception {
+                            synchronized (mOptimisticSkus) {
+                                mReconcileDisposable = null;
+                            }
+                            IapTrace.w("reconcile", throwable, "Reconciliation failed with error: %s", throwable.getLocalizedMessage());
+                        }
+                    });
+        }
+    }
+
+    private static int countDrift(@NonNull PurchaseChangeSet changeSet, @NonNull Set<String> skus) {
+        int drift = 0;
+        for (List<Product> products : Arrays.asList(changeSet.getAdded(), changeSet.getUpdated(), changeSet.getRemoved())) {
+            for (Product product : products) {
+                if (skus.contains(product.getSku())) {
+                    drift++;
+                }
+            }
+        }
+        return drift;
+    }
+
+    protected long getDriftCount() {
+        return mDriftCount.get();
+    }
+
+    @NonNull
+    protected List<Product> findRestorableProducts() {
+        List<Product> products = new ArrayList<>();
+        for (Product product : mProducts.values()) {
+            if (product.getPurchaseState() == Product.PurchaseState.PURCHASED &&
+                    (product.isConsumable() || !product.isAcknowledged())) {
+                products.add(product);
+            }
+        }
+        return products;
+    }
+
+    @NonNull
+    protected Flowable<Product> restoreProducts(@NonNull List<Product> products, boolean autoAcknowledge,
+                                                @Nullable Consumer<RestoreProgress> progress) {
+        return Flowable.defer(new Callable<Publisher<? extends Product>>() {
+            @Override
+            public Publisher<? extends Product> call() throws Exception {
+                int total = products.size();
+                List<Throwable> errors = new ArrayList<>();
+                int[] restored = new int[1];
+                AtomicBoolean acknowledged = new AtomicBoolean();
+
+                if (progress != null) {
+                    progress.accept(new RestoreProgress(total, 0, 0));
+                }
+
+                return Flowable.fromIterable(products)
+                        .flatMapSingle(new Function<Product, SingleSource<RestoreItem>>() {
+                            @Override
+                            public SingleSource<RestoreItem> apply(Product product) throws Exception {
+                                Single<Product> single = Single.just(product);
+                                String purchaseToken = product.getPurchaseToken();
+                                if (autoAcknowledge && !product.isAcknowledged() && purchaseToken != null) {
+                                    single = acknowledgePurchase(purchaseToken)
+                                            .andThen(Single.fromCallable(new Callable<Product>() {
+                                                @Override
+                                                public Product call() throws Exception {
+                                                    acknowledged.set(true);
+                                                    applySettledPurchase(product, purchaseToken, false);
+                                                    return product;
+                                                }
+                                            }));
+                                }
+                                return single
+                                        .map(new Function<Product, RestoreItem>() {
+                                            @Override
+                                            public RestoreItem apply(Product product) throws Exception {
+                                                return new RestoreItem(product, null);
+                                            }
+                                        })
+                                        .onErrorReturn(new Function<Throwable, RestoreItem>() {
+                                            @Override
+                                            public RestoreItem apply(Throwable throwable) throws Exception {
+                                                return new RestoreItem(product, throwable);
+                                            }
+                                        });
+                            }
+                        }, false, mBatchConcurrency)
+                        .concatMap(new Function<RestoreItem, Publisher<Product>>() {
+                            @Override
+                            public Publisher<Product> apply(RestoreItem item) throws Exception {
+                                if (item.mError != null) {
+                                    errors.add(item.mError);
+                                } else {
+                                    restored[0]++;
+                                }
+                                if (progress != null) {
+                                    progress.accept(new RestoreProgress(total, restored[0], errors.size()));
+                                }
+                                return item.mError == null ? Flowable.just(item.mProduct) : Flowable.<Product>empty();
+                            }
+                        })
+                        .concatWith(Flowable.defer(new Callable<Publisher<? extends Product>>() {
+                            @Override
+                            public Publisher<? extends Product> call() throws Exception {
+                                Completable refresh = Completable.complete();
+                                if (acknowledged.get() && !mOptimisticUpdates) {
+                                    refresh = queryPurchasesAsync()
+                                            .doOnSuccess(new Consumer<List<Purchase>>() {
+                                                @Override
+                                                public void accept(List<Purchase> purchases) throws Exception {
+                                                    updatePurchases(purchases);
+                                                }
+                                            })
+                                            .ignoreElement()
+                                            .onErrorComplete();
+                                }
+
+                                if (errors.isEmpty()) {
+                                    return refresh.toFlowable();
+                                }
+                                Throwable error = errors.size() == 1 ? errors.get(0) : new CompositeException(errors);
+                                return refresh.andThen(Flowable.<Product>error(error));
+                            }
+                        }));
+            }
+        });
     }
 
     @NonNull
     private Completable errorCompletable(IapError.Code code, @StringRes int messageId, Object... args) {
-        String message = mContext.get().getString(messageId, args);
+        String message = mPlatform.getString(messageId, args);
         IapError error = new IapError(code, message);
         return Completable.error(error);
     }
 
     @NonNull
     private <T> Single<T> errorSingle(IapError.Code code, @StringRes int messageId, Object... args) {
-        String message = mContext.get().getString(messageId, args);
+        String message = mPlatform.getString(messageId, args);
         IapError error = new IapError(code, message);
         return Single.error(error);
     }
@@ -470,22 +1305,8 @@ abstract class PurchaserInternal {
                             return Single.just(skuDetails);
                         }
 
-                        List<String> skuList = new ArrayList<>(1);
-                        skuList.add(sku);
-                        return querySkuDetailsAsync(skuList)
-                                .flatMap(new Function<List<SkuDetails>, SingleSource<? extends SkuDetails>>() {
-                                    @Override
-                                    public SingleSource<? extends SkuDetails> apply(List<SkuDetails> skuDetailsList) throws Exception {
-                                        updateSkuDetails(skuDetailsList);
-
-                                        for (SkuDetails item : skuDetailsList) {
-                                            if (item.getSku().equals(sku)) {
-                                                return Single.just(item);
-                                            }
-                                        }
-                                        return errorSingle(IapError.Code.ITEM_UNAVAILABLE, R.string.product_not_found, sku);
-                                    }
-                                });
+                        return mSkuDetailsBatcher.get(sku)
+                                .switchIfEmpty(errorSingle(IapError.Code.ITEM_UNAVAILABLE, R.string.product_not_found, sku));
                     }
                 });
     }
@@ -533,26 +1354,91 @@ abstract class PurchaserInternal {
                 });
     }
 
+    @NonNull
+    protected Single<BatchResult> runBatch(@NonNull Collection<String> skuList, @NonNull Function<String, Completable> operation) {
+        Set<String> skus = new LinkedHashSet<>(skuList);
+        return Flowable.fromIterable(skus)
+                .flatMapSingle(new Function<String, SingleSource<BatchItem>>() {
+                    @Override
+                    public SingleSource<BatchItem> apply(String sku) throws Exception {
+                        return operation.apply(sku)
+                                .toSingleDefault(new BatchItem(sku, null))
+                                .onErrorReturn(new Function<Throwable, BatchItem>() {
+                                    @Override
+                                    public BatchItem apply(Throwable throwable) throws Exception {
+                                        return new BatchItem(sku, throwable);
+                                    }
+                                });
+                    }
+                }, false, mBatchConcurrency)
+                .toList()
+                .flatMap(new Function<List<BatchItem>, SingleSource<BatchResult>>() {
+                    @Override
+                    public SingleSource<BatchResult> apply(List<BatchItem> items) throws Exception {
+                        Map<String, Throwable> errors = new HashMap<>();
+                        for (BatchItem item : items) {
+                            if (item.mError != null) {
+                                errors.put(item.mSku, item.mError);
+                            }
+                        }
+
+                        if (errors.size() == skus.size() || mOptimisticUpdates) {
+                            return Single.just(toBatchResult(skus, errors));
+                        }
+
+                        return queryPurchasesAsync()
+                                .map(new Function<List<Purchase>, BatchResult>() {
+                                    @Override
+                                    public BatchResult apply(List<Purchase> purchases) throws Exception {
+                                        updatePurchases(purchases);
+                                        return toBatchResult(skus, errors);
+                                    }
+                                })
+                                .onErrorReturn(new Function<Throwable, BatchResult>() {
+                                    @Override
+                                    public BatchResult apply(Throwable throwable) throws Exception {
+                                        IapTrace.w("batch", throwable, "Refresh after batch failed with error: %s", throwable.getLocalizedMessage());
+                                        return toBatchResult(skus, errors);
+                                    }
+                                });
+                    }
+                });
+    }
+
+    @NonNull
+    private BatchResult toBatchResult(@NonNull Set<String> skus, @NonNull Map<String, Throwable> errors) {
+        BatchResult result = new BatchResult();
+        for (String sku : skus) {
+            Throwable error = errors.get(sku);
+            Product product = mProducts.get(sku);
+            if (error == null && product != null) {
+                result.addSuccess(product);
+            } else {
+                result.addFailure(sku, error != null ? error : new IapError(IapError.Code.ITEM_UNAVAILABLE, mPlatform.getString(R.string.product_not_found, sku)));
+            }
+        }
+        return result;
+    }
+
     @NonNull
     protected Completable addLog(@NonNull String title, @NonNull Completable completable) {
         return completable
                 .doOnSubscribe(new Consumer<Disposable>() {
                     @Override
                     public void accept(Disposable disposable) throws Exception {
-                        logMap(String.format("%s.OnSubscribe.", title));
+                        trace(title, "OnSubscribe.");
                     }
                 })
                 .doOnComplete(new Action() {
                     @Override
                     public void run() throws Exception {
-                        logMap(String.format("%s.OnComplete.", title));
+                        trace(title, "OnComplete.");
                     }
                 })
                 .doOnError(new Consumer<Throwable>() {
                     @Override
                     public void accept(Throwable throwable) throws Exception {
-                        Log.i(TAG, String.format("%s.OnError: %s", title, throwable.getLocalizedMessage()));
-                        throwable.printStackTrace();
+                        IapTrace.w(title, throwable, "OnError: %s", throwable.getLocalizedMessage());
                     }
                 });
     }
@@ -563,21 +1449,20 @@ abstract class PurchaserInternal {
                 .doOnSubscribe(new Consumer<Disposable>() {
                     @Override
                     public void accept(Disposable disposable) throws Exception {
-                        logMap(String.format("%s.OnSubscribe.", title));
+                        trace(title, "OnSubscribe.");
                     }
                 })
                 .doOnSuccess(new Consumer<T>() {
                     @Override
                     public void accept(T t) throws Exception {
-                        Log.i(TAG, String.format("%s.OnSuccess.item=%s", title, t));
-                        logMap(String.format("%s.OnSuccess.", title));
+                        IapTrace.d(title, "OnSuccess.item=%s", t);
+                        trace(title, "OnSuccess.");
                     }
                 })
                 .doOnError(new Consumer<Throwable>() {
                     @Override
                     public void accept(Throwable throwable) throws Exception {
-                        Log.i(TAG, String.format("%s.OnError: %s", title, throwable.getLocalizedMessage()));
-                        throwable.printStackTrace();
+                        IapTrace.w(title, throwable, "OnError: %s", throwable.getLocalizedMessage());
                     }
                 });
     }
@@ -588,42 +1473,122 @@ abstract class PurchaserInternal {
                 .doOnSubscribe(new Consumer<Disposable>() {
                     @Override
                     public void accept(Disposable disposable) throws Exception {
-                        logMap(String.format("%s.OnSubscribe.", title));
+                        trace(title, "OnSubscribe.");
                     }
                 })
                 .doOnSuccess(new Consumer<T>() {
                     @Override
                     public void accept(T t) throws Exception {
-                        Log.i(TAG, String.format("%s.OnSuccess.item=%s", title, t));
-                        logMap(String.format("%s.OnSuccess.", title));
+                        IapTrace.d(title, "OnSuccess.item=%s", t);
+                        trace(title, "OnSuccess.");
+                    }
+                })
+                .doOnError(new Consumer<Throwable>() {
+                    @Override
+                    public void accept(Throwable throwable) throws Exception {
+                        IapTrace.w(title, throwable, "OnError: %s", throwable.getLocalizedMessage());
+                    }
+                })
+                .doOnComplete(new Action() {
+                    @Override
+                    public void run() throws Exception {
+                        trace(title, "OnComplete.");
+                    }
+                });
+    }
+
+    @NonNull
+    protected <T> Flowable<T> addLog(@NonNull String title, @NonNull Flowable<T> flowable) {
+        return flowable
+                .doOnSubscribe(new Consumer<Subscription>() {
+                    @Override
+                    public void accept(Subscription subscription) throws Exception {
+                        trace(title, "OnSubscribe.");
+                    }
+                })
+                .doOnNext(new Consumer<T>() {
+                    @Override
+                    public void accept(T t) throws Exception {
+                        IapTrace.d(title, "OnNext.item=%s", t);
+                    }
+                })
+                .doOnError(new Consumer<Throwable>() {
+                    @Override
+                    public void accept(Throwable throwable) throws Exception {
+                        IapTrace.w(title, throwable, "OnError: %s", throwable.getLocalizedMessage());
+                    }
+                })
+                .doOnComplete(new Action() {
+                    @Override
+                    public void run() throws Exception {
+                        trace(title, "OnComplete.");
+                    }
+                });
+    }
+
+    @NonNull
+    protected <T> Observable<T> addLog(@NonNull String title, @NonNull Observable<T> observable) {
+        return observable
+                .doOnSubscribe(new Consumer<Disposable>() {
+                    @Override
+                    public void accept(Disposable disposable) throws Exception {
+                        trace(title, "OnSubscribe.");
+                    }
+                })
+                .doOnNext(new Consumer<T>() {
+                    @Override
+                    public void accept(T t) throws Exception {
+                        IapTrace.d(title, "OnNext.item=%s", t);
                     }
                 })
                 .doOnError(new Consumer<Throwable>() {
                     @Override
                     public void accept(Throwable throwable) throws Exception {
-                        Log.i(TAG, String.format("%s.OnError: %s", title, throwable.getLocalizedMessage()));
-                        throwable.printStackTrace();
+                        IapTrace.w(title, throwable, "OnError: %s", throwable.getLocalizedMessage());
                     }
                 })
                 .doOnComplete(new Action() {
                     @Override
                     public void run() throws Exception {
-                        logMap(String.format("%s.OnComplete.", title));
+                        trace(title, "OnComplete.");
                     }
                 });
     }
 
-    protected void logMap(@NonNull String title) {
-        StringBuilder strProducts = new StringBuilder(title);
-        strProducts.append("Products: [");
-        if (mProducts.size() > 0) {
+    protected void trace(@NonNull String operation, @NonNull String event) {
+        IapTrace.d(operation, event);
+        if (IapTrace.isEnabled(IapTrace.Level.VERBOSE)) {
+            StringBuilder strProducts = new StringBuilder(event);
+            strProducts.append(" Products: [");
             Object[] values = mProducts.values().toArray();
-            strProducts.append(values[0]);
-            for (int i = 1; i < values.length; i++) {
-                strProducts.append(", ").append(values[i]);
+            if (values.length > 0) {
+                strProducts.append(values[0]);
+                for (int i = 1; i < values.length; i++) {
+                    strProducts.append(", ").append(values[i]);
+                }
             }
+            strProducts.append("]");
+            IapTrace.v(operation, strProducts.toString());
+        }
+    }
+
+    private static final class BatchItem {
+        final String mSku;
+        final Throwable mError;
+
+        BatchItem(@NonNull String sku, @Nullable Throwable error) {
+            mSku = sku;
+            mError = error;
+        }
+    }
+
+    private static final class RestoreItem {
+        final Product mProduct;
+        final Throwable mError;
+
+        RestoreItem(@NonNull Product product, @Nullable Throwable error) {
+            mProduct = product;
+            mError = error;
         }
-        strProducts.append("]");
-        Log.i(TAG, strProducts.toString());
     }
 }
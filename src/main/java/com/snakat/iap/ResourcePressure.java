@@ -0,0 +1,90 @@
+package com.snakat.iap;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.res.Configuration;
+import android.os.BatteryManager;
+import android.os.Build;
+import android.os.PowerManager;
+
+import androidx.annotation.NonNull;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tells background work such as prefetching when the device is short on memory or battery.
+ * Memory warnings count for {@link #MEMORY_PRESSURE_WINDOW} since Android never reports their end.
+ */
+final class ResourcePressure implements ComponentCallbacks2 {
+
+    static final long MEMORY_PRESSURE_WINDOW = TimeUnit.MINUTES.toNanos(1);
+    static final int LOW_BATTERY_PERCENT = 15;
+
+    private final Context mContext;
+
+    private volatile long mLowMemoryAt = 0;
+
+    ResourcePressure(@NonNull Context context) {
+        Context applicationContext = context.getApplicationContext();
+        mContext = applicationContext != null ? applicationContext : context;
+    }
+
+    void register() {
+        mContext.registerComponentCallbacks(this);
+    }
+
+    void unregister() {
+        mContext.unregisterComponentCallbacks(this);
+    }
+
+    boolean isUnderPressure() {
+        return isLowOnMemory() || isPowerSaveMode() || isLowOnBattery();
+    }
+
+    boolean isLowOnMemory() {
+        long lowMemoryAt = mLowMemoryAt;
+        return lowMemoryAt != 0 && System.nanoTime() - lowMemoryAt < MEMORY_PRESSURE_WINDOW;
+    }
+
+    private boolean isPowerSaveMode() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return false;
+        }
+        PowerManager powerManager = (PowerManager) mContext.getSystemService(Context.POWER_SERVICE);
+        return powerManager != null && powerManager.isPowerSaveMode();
+    }
+
+    private boolean isLowOnBattery() {
+        Intent battery = mContext.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        if (battery == null) {
+            return false;
+        }
+
+        int status = battery.getIntExtra(BatteryManager.EXTRA_STATUS, -1);
+        if (status == BatteryManager.BATTERY_STATUS_CHARGING || status == BatteryManager.BATTERY_STATUS_FULL) {
+            return false;
+        }
+
+        int level = battery.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+        int scale = battery.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+        return level >= 0 && scale > 0 && level * 100 / scale <= LOW_BATTERY_PERCENT;
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        if (level == TRIM_MEMORY_RUNNING_LOW || level == TRIM_MEMORY_RUNNING_CRITICAL || level >= TRIM_MEMORY_MODERATE) {
+            mLowMemoryAt = System.nanoTime();
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        mLowMemoryAt = System.nanoTime();
+    }
+
+    @Override
+    public void onConfigurationChanged(@NonNull Configuration newConfig) {
+    }
+}
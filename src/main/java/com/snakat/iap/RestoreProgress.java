@@ -0,0 +1,42 @@
+package com.snakat.iap;
+
+import androidx.annotation.NonNull;
+
+public final class RestoreProgress {
+
+    private final int mTotal;
+    private final int mRestored;
+    private final int mFailed;
+
+    RestoreProgress(int total, int restored, int failed) {
+        mTotal = total;
+        mRestored = restored;
+        mFailed = failed;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return "(Total=" + mTotal + ", Restored=" + mRestored + ", Failed=" + mFailed + ")";
+    }
+
+    public int getTotal() {
+        return mTotal;
+    }
+
+    public int getRestored() {
+        return mRestored;
+    }
+
+    public int getFailed() {
+        return mFailed;
+    }
+
+    public int getRemaining() {
+        return mTotal - mRestored - mFailed;
+    }
+
+    public boolean isDone() {
+        return getRemaining() == 0;
+    }
+}
@@ -0,0 +1,173 @@
+package com.snakat.iap;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.reactivestreams.Publisher;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.reactivex.Completable;
+import io.reactivex.Flowable;
+import io.reactivex.functions.Function;
+
+public final class RetryPolicy {
+
+    public static final RetryPolicy NONE = new Builder().setMaxAttempts(1).build();
+
+    private final int mMaxAttempts;
+    private final Map<IapError.Code, Integer> mRules;
+    private final long mBaseDelay;
+    private final long mMaxDelay;
+    private final int mBudget;
+    private final long mBudgetPeriod;
+
+    private final Random mRandom = new Random();
+    private final AtomicLong mRetryCount = new AtomicLong();
+    private final AtomicLong mBudgetExhaustedCount = new AtomicLong();
+
+    private double mTokens;
+    private long mRefilledAt;
+
+    private RetryPolicy(@NonNull Builder builder) {
+        mMaxAttempts = builder.mMaxAttempts;
+        mRules = new EnumMap<>(builder.mRules);
+        mBaseDelay = builder.mBaseDelay;
+        mMaxDelay = builder.mMaxDelay;
+        mBudget = builder.mBudget;
+        mBudgetPeriod = builder.mBudgetPeriod;
+
+        mTokens = mBudget;
+        mRefilledAt = System.nanoTime();
+    }
+
+    public long getRetryCount() {
+        return mRetryCount.get();
+    }
+
+    public long getBudgetExhaustedCount() {
+        return mBudgetExhaustedCount.get();
+    }
+
+    int getMaxAttempts(@NonNull Throwable throwable) {
+        if (!(throwable instanceof IapError)) {
+            return 1;
+        }
+        Integer maxAttempts = mRules.get(((IapError) throwable).getCode());
+        return maxAttempts == null ? 1 : Math.min(maxAttempts, mMaxAttempts);
+    }
+
+    long getDelay(int attempt) {
+        long delay = Math.min(mMaxDelay, mBaseDelay << Math.min(attempt - 1, 16));
+        synchronized (mRandom) {
+            return (long) (mRandom.nextDouble() * delay);
+        }
+    }
+
+    synchronized boolean tryAcquire() {
+        long now = System.nanoTime();
+        if (mBudgetPeriod > 0) {
+            mTokens = Math.min(mBudget, mTokens + (double) (now - mRefilledAt) * mBudget / mBudgetPeriod);
+        }
+        mRefilledAt = now;
+
+        if (mTokens < 1) {
+            mBudgetExhaustedCount.incrementAndGet();
+            return false;
+        }
+        mTokens--;
+        return true;
+    }
+
+    @NonNull
+    Function<Flowable<Throwable>, Publisher<?>> newHandler(@Nullable Completable reconnect) {
+        return new Function<Flowable<Throwable>, Publisher<?>>() {
+            @Override
+            public Publisher<?> apply(Flowable<Throwable> errors) throws Exception {
+                AtomicInteger attempt = new AtomicInteger(1);
+                return errors.concatMap(new Function<Throwable, Publisher<?>>() {
+                    @Override
+                    public Publisher<?> apply(Throwable throwable) throws Exception {
+                        if (attempt.get() >= getMaxAttempts(throwable) || !tryAcquire()) {
+                            return Flowable.error(throwable);
+                        }
+
+                        long delay = getDelay(attempt.getAndIncrement());
+                        mRetryCount.incrementAndGet();
+
+                        Flowable<Long> timer = Flowable.timer(delay, TimeUnit.MILLISECONDS);
+                        if (reconnect != null && ((IapError) throwable).getCode() == IapError.Code.SERVICE_DISCONNECTED) {
+                            return timer.concatWith(reconnect.<Long>toFlowable()).takeLast(1);
+                        }
+                        return timer;
+                    }
+                });
+            }
+        };
+    }
+
+    public static final class Builder {
+
+        private int mMaxAttempts = 3;
+        private final Map<IapError.Code, Integer> mRules = new EnumMap<>(IapError.Code.class);
+        private long mBaseDelay = 200;
+        private long mMaxDelay = TimeUnit.SECONDS.toMillis(5);
+        private int mBudget = 20;
+        private long mBudgetPeriod = TimeUnit.MINUTES.toNanos(1);
+
+        public Builder() {
+            mRules.put(IapError.Code.SERVICE_TIMEOUT, Integer.MAX_VALUE);
+            mRules.put(IapError.Code.SERVICE_UNAVAILABLE, Integer.MAX_VALUE);
+            mRules.put(IapError.Code.SERVICE_DISCONNECTED, Integer.MAX_VALUE);
+            mRules.put(IapError.Code.ERROR, Integer.MAX_VALUE);
+        }
+
+        @NonNull
+        public Builder setMaxAttempts(int maxAttempts) {
+            mMaxAttempts = Math.max(1, maxAttempts);
+            return this;
+        }
+
+        @NonNull
+        public Builder retryOn(@NonNull IapError.Code code) {
+            mRules.put(code, Integer.MAX_VALUE);
+            return this;
+        }
+
+        @NonNull
+        public Builder retryOn(@NonNull IapError.Code code, int maxAttempts) {
+            mRules.put(code, Math.max(1, maxAttempts));
+            return this;
+        }
+
+        @NonNull
+        public Builder doNotRetryOn(@NonNull IapError.Code code) {
+            mRules.remove(code);
+            return this;
+        }
+
+        @NonNull
+        public Builder setBackoff(long baseDelay, long maxDelay, @NonNull TimeUnit unit) {
+            mBaseDelay = Math.max(1, unit.toMillis(baseDelay));
+            mMaxDelay = Math.max(mBaseDelay, unit.toMillis(maxDelay));
+            return this;
+        }
+
+        @NonNull
+        public Builder setRetryBudget(int retries, long period, @NonNull TimeUnit unit) {
+            mBudget = Math.max(0, retries);
+            mBudgetPeriod = unit.toNanos(period);
+            return this;
+        }
+
+        @NonNull
+        public RetryPolicy build() {
+            return new RetryPolicy(this);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package com.snakat.iap;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.reactivex.Single;
+import io.reactivex.SingleSource;
+import io.reactivex.functions.Action;
+import io.reactivex.functions.BiConsumer;
+import io.reactivex.functions.Function;
+
+final class SingleFlight<E> {
+
+    private final Function<Set<String>, Single<List<E>>> mFactory;
+    private final List<Flight<E>> mFlights = new ArrayList<>();
+
+    private final AtomicLong mCoalescedCount = new AtomicLong();
+
+    private long mGeneration = 0;
+
+    SingleFlight(@NonNull Function<Set<String>, Single<List<E>>> factory) {
+        mFactory = factory;
+    }
+
+    @NonNull
+    Single<List<E>> join(@NonNull Collection<String> keys) {
+        return Single.defer(new Callable<SingleSource<? extends List<E>>>() {
+            @Override
+            public SingleSource<? extends List<E>> call() throws Exception {
+                Set<String> remaining = new HashSet<>(keys);
+                List<Single<List<E>>> sources = new ArrayList<>();
+
+                synchronized (mFlights) {
+                    for (Flight<E> flight : mFlights) {
+                        if (remaining.isEmpty()) {
+                            break;
+                        }
+                        if (flight.mGeneration != mGeneration) {
+                            continue;
+                        }
+                        if (remaining.removeAll(flight.mKeys)) {
+                            sources.add(flight.mSingle);
+                            mCoalescedCount.incrementAndGet();
+                        }
+                    }
+
+                    if (!remaining.isEmpty() || keys.isEmpty()) {
+                        sources.add(start(remaining));
+                    }
+                }
+
+                if (sources.size() == 1) {
+                    return sources.get(0);
+                }
+                return Single.merge(sources)
+                        .collect(new Callable<List<E>>() {
+                            @Override
+                            public List<E> call() throws Exception {
+                                return new ArrayList<>();
+                            }
+                        }, new BiConsumer<List<E>, List<E>>() {
+                            @Override
+                            public void accept(List<E> result, List<E> items) throws Exception {
+                                result.addAll(items);
+                            }
+                        });
+            }
+        });
+    }
+
+    /**
+     * Stops later joins from sharing the flights already running, e.g. after a mutation their
+     * results may predate. Those flights still complete for the callers that joined them.
+     */
+    void invalidate() {
+        synchronized (mFlights) {
+            mGeneration++;
+        }
+    }
+
+    long getCoalescedCount() {
+        return mCoalescedCount.get();
+    }
+
+    @NonNull
+    private Single<List<E>> start(@NonNull Set<String> keys) throws Exception {
+        Flight<E> flight = new Flight<>(keys, mGeneration);
+        flight.mSingle = mFactory.apply(keys)
+                .doFinally(new Action() {
+                    @Override
+                    public void run() throws Exception {
+                        synchronized (mFlights) {
+                            mFlights.remove(flight);
+                        }
+                    }
+                })
+                .cache();
+
+        mFlights.add(flight);
+        return flight.mSingle;
+    }
+
+    private static final class Flight<E> {
+        final Set<String> mKeys;
+        final long mGeneration;
+        Single<List<E>> mSingle;
+
+        Flight(@NonNull Set<String> keys, long generation) {
+            mKeys = keys;
+            mGeneration = generation;
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package com.snakat.iap;
+
+import androidx.annotation.NonNull;
+
+import com.android.billingclient.api.SkuDetails;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import io.reactivex.Maybe;
+import io.reactivex.MaybeEmitter;
+import io.reactivex.MaybeOnSubscribe;
+import io.reactivex.Scheduler;
+import io.reactivex.Single;
+import io.reactivex.disposables.Disposable;
+import io.reactivex.functions.Cancellable;
+import io.reactivex.functions.Consumer;
+import io.reactivex.functions.Function;
+
+final class SkuDetailsBatcher {
+
+    static final long DEFAULT_WINDOW = 20;
+    static final int DEFAULT_MAX_BATCH_SIZE = 100;
+
+    private final Function<List<String>, Single<List<SkuDetails>>> mQuery;
+    private final Scheduler mScheduler;
+
+    private LinkedHashMap<String, List<MaybeEmitter<SkuDetails>>> mPending = new LinkedHashMap<>();
+    private Disposable mTimer;
+
+    private long mWindow = DEFAULT_WINDOW;
+    private int mMaxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+
+    SkuDetailsBatcher(@NonNull Function<List<String>, Single<List<SkuDetails>>> query, @NonNull Scheduler scheduler) {
+        mQuery = query;
+        mScheduler = scheduler;
+    }
+
+    synchronized void setWindow(long window) {
+        mWindow = Math.max(0, window);
+    }
+
+    synchronized void setMaxBatchSize(int maxBatchSize) {
+        mMaxBatchSize = Math.max(1, maxBatchSize);
+    }
+
+    @NonNull
+    Maybe<SkuDetails> get(@NonNull String sku) {
+        return Maybe.create(new MaybeOnSubscribe<SkuDetails>() {
+            @Override
+            public void subscribe(MaybeEmitter<SkuDetails> emitter) throws Exception {
+                enqueue(sku, emitter);
+            }
+        });
+    }
+
+    private void enqueue(@NonNull String sku, @NonNull MaybeEmitter<SkuDetails> emitter) {
+        Map<String, List<MaybeEmitter<SkuDetails>>> batch = null;
+
+        synchronized (this) {
+            List<MaybeEmitter<SkuDetails>> emitters = mPending.get(sku);
+            if (emitters == null) {
+                emitters = new ArrayList<>(1);
+                mPending.put(sku, emitters);
+            }
+            emitters.add(emitter);
+
+            if (mWindow == 0 || mPending.size() >= mMaxBatchSize) {
+                batch = takeBatch();
+            } else if (mTimer == null) {
+                mTimer = mScheduler.scheduleDirect(new Runnable() {
+                    @Override
+                    public void run() {
+                        Map<String, List<MaybeEmitter<SkuDetails>>> pending;
+                        synchronized (SkuDetailsBatcher.this) {
+                            mTimer = null;
+                            pending = takeBatch();
+                        }
+                        flush(pending);
+                    }
+                }, mWindow, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        emitter.setCancellable(new Cancellable() {
+            @Override
+            public void cancel() throws Exception {
+                remove(sku, emitter);
+            }
+        });
+
+        if (batch != null) {
+            flush(batch);
+        }
+    }
+
+    private synchronized void remove(@NonNull String sku, @NonNull MaybeEmitter<SkuDetails> emitter) {
+        List<MaybeEmitter<SkuDetails>> emitters = mPending.get(sku);
+        if (emitters != null && emitters.remove(emitter) && emitters.isEmpty()) {
+            mPending.remove(sku);
+        }
+    }
+
+    @NonNull
+    private Map<String, List<MaybeEmitter<SkuDetails>>> takeBatch() {
+        if (mTimer != null) {
+            mTimer.dispose();
+            mTimer = null;
+        }
+        Map<String, List<MaybeEmitter<SkuDetails>>> batch = mPending;
+        mPending = new LinkedHashMap<>();
+        return batch;
+    }
+
+    private void flush(@NonNull Map<String, List<MaybeEmitter<SkuDetails>>> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        Single<List<SkuDetails>> single;
+        try {
+            single = mQuery.apply(new ArrayList<>(batch.keySet()));
+        } catch (Throwable throwable) {
+            fail(batch, throwable);
+            return;
+        }
+
+        //noinspection ResultOfMethodCallIgnored
+        single.subscribe(new Consumer<List<SkuDetails>>() {
+            @Override
+            public void accept(List<SkuDetails> skuDetailsList) throws Exception {
+                Map<String, SkuDetails> skuDetailsMap = new HashMap<>(skuDetailsList.size());
+                for (SkuDetails skuDetails : skuDetailsList) {
+                    skuDetailsMap.put(skuDetails.getSku(), skuDetails);
+                }
+
+                for (Map.Entry<String, List<MaybeEmitter<SkuDetails>>> entry : batch.entrySet()) {
+                    SkuDetails skuDetails = skuDetailsMap.get(entry.getKey());
+                    for (MaybeEmitter<SkuDetails> emitter : entry.getValue()) {
+                        if (skuDetails != null) {
+                            emitter.onSuccess(skuDetails);
+                        } else {
+                            emitter.onComplete();
+                        }
+                    }
+                }
+            }
+        }, new Consumer<Throwable>() {
+            @Override
+            public void accept(Throwable throwable) throws Exception {
+                if (batch.size() > 1 && isCausedBySku(throwable)) {
+                    for (Map.Entry<String, List<MaybeEmitter<SkuDetails>>> entry : batch.entrySet()) {
+                        Map<String, List<MaybeEmitter<SkuDetails>>> retry = new HashMap<>(1);
+                        retry.put(entry.getKey(), entry.getValue());
+                        flush(retry);
+                    }
+                } else {
+                    fail(batch, throwable);
+                }
+            }
+        });
+    }
+
+    private static boolean isCausedBySku(@NonNull Throwable throwable) {
+        if (!(throwable instanceof IapError)) {
+            return false;
+        }
+        IapError.Code code = ((IapError) throwable).getCode();
+        return code == IapError.Code.ITEM_UNAVAILABLE || code == IapError.Code.DEVELOPER_ERROR;
+    }
+
+    private static void fail(@NonNull Map<String, List<MaybeEmitter<SkuDetails>>> batch, @NonNull Throwable throwable) {
+        for (List<MaybeEmitter<SkuDetails>> emitters : batch.values()) {
+            for (MaybeEmitter<SkuDetails> emitter : emitters) {
+                emitter.tryOnError(throwable);
+            }
+        }
+    }
+}
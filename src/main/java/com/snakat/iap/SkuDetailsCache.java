@@ -0,0 +1,248 @@
+package com.snakat.iap;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.android.billingclient.api.SkuDetails;
+
+import org.json.JSONException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+final class SkuDetailsCache {
+
+    static final long DEFAULT_TTL = TimeUnit.HOURS.toMillis(24);
+    static final int DEFAULT_MAX_ENTRIES = 5000;
+
+    private static final int MAGIC = 0x534b5544;
+    private static final int VERSION = 1;
+    private static final int MAX_JSON_LENGTH = 1024 * 1024;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File mFile;
+    private final Object mWriteLock = new Object();
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+
+    private long mTtl = DEFAULT_TTL;
+    private int mMaxEntries = DEFAULT_MAX_ENTRIES;
+    private boolean mDirty = false;
+
+    SkuDetailsCache(@NonNull File file) {
+        mFile = file;
+    }
+
+    synchronized void setTtl(long ttl) {
+        mTtl = ttl;
+    }
+
+    synchronized void setMaxEntries(int maxEntries) {
+        mMaxEntries = Math.max(1, maxEntries);
+        if (evict()) {
+            mDirty = true;
+        }
+    }
+
+    synchronized void load() {
+        mEntries.clear();
+
+        if (!mFile.exists()) {
+            return;
+        }
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            if (!IoUtils.readHeader(in, MAGIC, VERSION)) {
+                throw new IOException("Unsupported SkuDetails cache format.");
+            }
+
+            long now = System.currentTimeMillis();
+            int count = in.readInt();
+            if (count < 0) {
+                throw new IOException("Corrupted SkuDetails cache.");
+            }
+            for (int i = 0; i < count; i++) {
+                String sku = in.readUTF();
+                long savedAt = in.readLong();
+                int length = in.readInt();
+                if (length < 0 || length > MAX_JSON_LENGTH) {
+                    throw new IOException("Corrupted SkuDetails cache.");
+                }
+                byte[] json = new byte[length];
+                in.readFully(json);
+
+                if (isExpired(savedAt, now)) {
+                    mDirty = true;
+                    continue;
+                }
+                mEntries.put(sku, new Entry(new SkuDetails(new String(json, UTF_8)), savedAt));
+            }
+        } catch (IOException | JSONException | RuntimeException e) {
+            mEntries.clear();
+            mDirty = false;
+            //noinspection ResultOfMethodCallIgnored
+            mFile.delete();
+        } finally {
+            IoUtils.closeQuietly(in);
+        }
+
+        if (evict()) {
+            mDirty = true;
+        }
+    }
+
+    void save() throws IOException {
+        synchronized (mWriteLock) {
+            List<Map.Entry<String, Entry>> entries;
+            synchronized (this) {
+                if (!mDirty) {
+                    return;
+                }
+                entries = new ArrayList<>(mEntries.entrySet());
+                mDirty = false;
+            }
+
+            try {
+                write(entries);
+            } catch (IOException e) {
+                synchronized (this) {
+                    mDirty = true;
+                }
+                throw e;
+            }
+        }
+    }
+
+    private void write(@NonNull List<Map.Entry<String, Entry>> entries) throws IOException {
+        File tmp = IoUtils.tempFileFor(mFile);
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            IoUtils.writeHeader(out, MAGIC, VERSION);
+            out.writeInt(entries.size());
+            for (Map.Entry<String, Entry> item : entries) {
+                byte[] json = item.getValue().mSkuDetails.getOriginalJson().getBytes(UTF_8);
+                out.writeUTF(item.getKey());
+                out.writeLong(item.getValue().mSavedAt);
+                out.writeInt(json.length);
+                out.write(json);
+            }
+            out.flush();
+        } finally {
+            IoUtils.closeQuietly(out);
+        }
+
+        IoUtils.replace(tmp, mFile);
+    }
+
+    @Nullable
+    synchronized SkuDetails get(@NonNull String sku) {
+        Entry entry = mEntries.get(sku);
+        if (entry == null) {
+            mMisses.incrementAndGet();
+            return null;
+        }
+        if (isExpired(entry.mSavedAt, System.currentTimeMillis())) {
+            mEntries.remove(sku);
+            mDirty = true;
+            mMisses.incrementAndGet();
+            return null;
+        }
+        mHits.incrementAndGet();
+        return entry.mSkuDetails;
+    }
+
+    /**
+     * When the SkuDetails of {@code sku} were saved, or 0 when they are not cached. Unlike
+     * {@link #get(String)}, this does not count as a hit or a miss.
+     */
+    synchronized long getSavedAt(@NonNull String sku) {
+        Entry entry = mEntries.get(sku);
+        return entry != null ? entry.mSavedAt : 0;
+    }
+
+    synchronized void put(@NonNull List<SkuDetails> skuDetailsList) {
+        if (skuDetailsList.isEmpty()) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        for (SkuDetails skuDetails : skuDetailsList) {
+            mEntries.put(skuDetails.getSku(), new Entry(skuDetails, now));
+        }
+        evict();
+        mDirty = true;
+    }
+
+    void clear() {
+        synchronized (mWriteLock) {
+            synchronized (this) {
+                mEntries.clear();
+                mDirty = false;
+            }
+            //noinspection ResultOfMethodCallIgnored
+            mFile.delete();
+        }
+    }
+
+    synchronized int size() {
+        return mEntries.size();
+    }
+
+    long getHitCount() {
+        return mHits.get();
+    }
+
+    long getMissCount() {
+        return mMisses.get();
+    }
+
+    double getHitRatio() {
+        long hits = mHits.get();
+        long total = hits + mMisses.get();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    private boolean isExpired(long savedAt, long now) {
+        return now - savedAt >= mTtl || savedAt > now;
+    }
+
+    private boolean evict() {
+        boolean evicted = false;
+        Iterator<Entry> iterator = mEntries.values().iterator();
+        while (mEntries.size() > mMaxEntries && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+            evicted = true;
+        }
+        return evicted;
+    }
+
+    private static final class Entry {
+        final SkuDetails mSkuDetails;
+        final long mSavedAt;
+
+        Entry(@NonNull SkuDetails skuDetails, long savedAt) {
+            mSkuDetails = skuDetails;
+            mSavedAt = savedAt;
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package com.snakat.iap;
+
+import androidx.annotation.NonNull;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.reactivex.Scheduler;
+import io.reactivex.plugins.RxJavaPlugins;
+import io.reactivex.schedulers.Schedulers;
+
+/**
+ * Runs state work one task at a time, in submission order, on a configurable scheduler. Billing
+ * callbacks hop here so catalog and purchase updates never run on the main thread and never
+ * overlap each other.
+ */
+final class StateExecutor implements Executor {
+
+    private final Queue<Runnable> mQueue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger mWip = new AtomicInteger();
+    private final Scheduler mScheduler = Schedulers.from(this);
+
+    private volatile Scheduler mTarget;
+
+    StateExecutor(@NonNull Scheduler target) {
+        mTarget = target;
+    }
+
+    /**
+     * Moves the following tasks to another scheduler. Tasks keep running one at a time across
+     * the switch.
+     */
+    void setTarget(@NonNull Scheduler target) {
+        mTarget = target;
+    }
+
+    /**
+     * A scheduler whose tasks all go through this executor, for {@code observeOn}.
+     */
+    @NonNull
+    Scheduler asScheduler() {
+        return mScheduler;
+    }
+
+    @Override
+    public void execute(@NonNull Runnable runnable) {
+        mQueue.offer(runnable);
+        if (mWip.getAndIncrement() == 0) {
+            mTarget.scheduleDirect(new Runnable() {
+                @Override
+                public void run() {
+                    drain();
+                }
+            });
+        }
+    }
+
+    private void drain() {
+        int missed = 1;
+        do {
+            Runnable runnable;
+            while ((runnable = mQueue.poll()) != null) {
+                try {
+                    runnable.run();
+                } catch (Throwable throwable) {
+                    RxJavaPlugins.onError(throwable);
+                }
+            }
+            missed = mWip.addAndGet(-missed);
+        } while (missed != 0);
+    }
+}
@@ -0,0 +1,257 @@
+package com.snakat.iap;
+
+import com.android.billingclient.api.BillingClient;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import io.reactivex.Completable;
+import io.reactivex.functions.Action;
+import io.reactivex.functions.Consumer;
+import io.reactivex.schedulers.Schedulers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Hammers {@link BillingConnection} with concurrent callers while the fake backend drops the
+ * connection under them. Every caller must be settled exactly once and nothing may stay queued or
+ * referenced afterwards.
+ */
+public class BillingConnectionStressTest {
+
+    private static final int THREADS = 8;
+    private static final int CALLERS = 5000;
+    private static final long TIMEOUT_SECONDS = 30;
+
+    private FakeBillingBackend mBackend;
+    private BillingConnection mConnection;
+    private ExecutorService mExecutor;
+
+    @Before
+    public void setUp() {
+        mBackend = new FakeBillingBackend(42, Schedulers.computation())
+                .setLatency(0, 2, TimeUnit.MILLISECONDS);
+        mConnection = new BillingConnection(mBackend, Schedulers.computation(), new IapMetrics());
+        mExecutor = Executors.newFixedThreadPool(THREADS);
+    }
+
+    @After
+    public void tearDown() {
+        mExecutor.shutdownNow();
+        mConnection.end();
+    }
+
+    @Test
+    public void connectSettlesEveryWaiterOnceUnderDisconnects() throws Exception {
+        mConnection.setKeepAlive(true);
+        mBackend.setFailureRate(IapMetrics.Operation.START_CONNECTION, 0.1, BillingClient.BillingResponseCode.SERVICE_UNAVAILABLE);
+
+        AtomicIntegerArray settled = new AtomicIntegerArray(CALLERS);
+        CountDownLatch done = new CountDownLatch(CALLERS);
+        AtomicBoolean running = new AtomicBoolean(true);
+        Thread disconnects = startDisconnects(running);
+
+        for (int i = 0; i < CALLERS; i++) {
+            int caller = i;
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    mConnection.connect().subscribe(new Action() {
+                        @Override
+                        public void run() throws Exception {
+                            settled.incrementAndGet(caller);
+                            done.countDown();
+                        }
+                    }, new Consumer<Throwable>() {
+                        @Override
+                        public void accept(Throwable throwable) throws Exception {
+                            settled.incrementAndGet(caller);
+                            done.countDown();
+                        }
+                    });
+                }
+            });
+        }
+
+        assertTrue("Connect waiters hung", done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        running.set(false);
+        disconnects.join();
+
+        for (int i = 0; i < CALLERS; i++) {
+            assertEquals("Caller " + i + " settled", 1, settled.get(i));
+        }
+        assertEquals(0, mConnection.getWaiterCount());
+    }
+
+    @Test
+    public void operationsReleaseTheConnectionUnderDisconnects() throws Exception {
+        mConnection.setKeepAlive(true);
+        mConnection.setIdleTimeout(1);
+
+        AtomicIntegerArray settled = new AtomicIntegerArray(CALLERS);
+        CountDownLatch done = new CountDownLatch(CALLERS);
+        AtomicBoolean running = new AtomicBoolean(true);
+        Thread disconnects = startDisconnects(running);
+
+        for (int i = 0; i < CALLERS; i++) {
+            int caller = i;
+            Completable operation = mConnection.use(mConnection.connect()
+                    .andThen(mConnection.use(Completable.timer(caller % 3, TimeUnit.MILLISECONDS))));
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    // A tenth of the callers give up right away.
+                    if (caller % 10 == 0) {
+                        operation.subscribe().dispose();
+                        settled.incrementAndGet(caller);
+                        done.countDown();
+                        return;
+                    }
+
+                    operation.subscribe(new Action() {
+                        @Override
+                        public void run() throws Exception {
+                            settled.incrementAndGet(caller);
+                            done.countDown();
+                        }
+                    }, new Consumer<Throwable>() {
+                        @Override
+                        public void accept(Throwable throwable) throws Exception {
+                            settled.incrementAndGet(caller);
+                            done.countDown();
+                        }
+                    });
+                }
+            });
+        }
+
+        assertTrue("Operations hung", done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        running.set(false);
+        disconnects.join();
+
+        for (int i = 0; i < CALLERS; i++) {
+            assertEquals("Caller " + i + " settled", 1, settled.get(i));
+        }
+        // References are released in doFinally, right after the callers were notified.
+        assertTrue("Connection still referenced", awaitReleased());
+        assertEquals(0, mConnection.getWaiterCount());
+    }
+
+    @Test
+    public void disposedWaitersAreSkippedByTheDrain() throws Exception {
+        // The setup finishes only after every caller gave up.
+        mBackend.setLatency(200, TimeUnit.MILLISECONDS);
+
+        AtomicIntegerArray settled = new AtomicIntegerArray(CALLERS);
+        CountDownLatch disposed = new CountDownLatch(CALLERS);
+
+        for (int i = 0; i < CALLERS; i++) {
+            int caller = i;
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    mConnection.connect().subscribe(new Action() {
+                        @Override
+                        public void run() throws Exception {
+                            settled.incrementAndGet(caller);
+                        }
+                    }, new Consumer<Throwable>() {
+                        @Override
+                        public void accept(Throwable throwable) throws Exception {
+                            settled.incrementAndGet(caller);
+                        }
+                    }).dispose();
+                    disposed.countDown();
+                }
+            });
+        }
+
+        assertTrue("Dispose hung", disposed.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(0, mConnection.getWaiterCount());
+
+        assertTrue("Connect hung", mConnection.connect().blockingAwait(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        for (int i = 0; i < CALLERS; i++) {
+            assertEquals("Caller " + i + " notified", 0, settled.get(i));
+        }
+        assertEquals(0, mConnection.getWaiterCount());
+    }
+
+    @Test
+    public void endFailsEveryPendingWaiter() throws Exception {
+        // The setup never finishes before end().
+        mBackend.setLatency(1, TimeUnit.MINUTES);
+
+        AtomicIntegerArray failed = new AtomicIntegerArray(CALLERS);
+        CountDownLatch subscribed = new CountDownLatch(CALLERS);
+        CountDownLatch done = new CountDownLatch(CALLERS);
+
+        for (int i = 0; i < CALLERS; i++) {
+            int caller = i;
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    mConnection.connect().subscribe(new Action() {
+                        @Override
+                        public void run() throws Exception {
+                            done.countDown();
+                        }
+                    }, new Consumer<Throwable>() {
+                        @Override
+                        public void accept(Throwable throwable) throws Exception {
+                            failed.incrementAndGet(caller);
+                            done.countDown();
+                        }
+                    });
+                    subscribed.countDown();
+                }
+            });
+        }
+
+        assertTrue(subscribed.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        mConnection.end();
+
+        assertTrue("Connect waiters hung", done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        for (int i = 0; i < CALLERS; i++) {
+            assertEquals("Caller " + i + " failed", 1, failed.get(i));
+        }
+        assertEquals(0, mConnection.getWaiterCount());
+    }
+
+    private boolean awaitReleased() throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+        while (mConnection.getActiveCount() != 0) {
+            if (System.nanoTime() > deadline) {
+                return false;
+            }
+            Thread.sleep(1);
+        }
+        return true;
+    }
+
+    private Thread startDisconnects(AtomicBoolean running) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (running.get()) {
+                    mBackend.disconnect();
+                    try {
+                        Thread.sleep(1);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        });
+        thread.start();
+        return thread;
+    }
+}
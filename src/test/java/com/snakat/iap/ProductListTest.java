@@ -0,0 +1,54 @@
+package com.snakat.iap;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.ListIterator;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that SKU lookups see every write to a {@link ProductList}, including the ones that go
+ * through views and leave ArrayList's modCount untouched.
+ */
+public class ProductListTest {
+
+    private ProductList mProducts;
+
+    @Before
+    public void setUp() {
+        mProducts = new ProductList();
+        for (int i = 0; i < 100; i++) {
+            mProducts.add(new Product("sku" + i, Product.Type.ONE_TIME));
+        }
+        // Builds the index.
+        assertTrue(mProducts.contains("sku0"));
+    }
+
+    @Test
+    public void setThroughSubListUpdatesLookups() {
+        Product replacement = new Product("replacement", Product.Type.CONSUMABLE);
+
+        mProducts.subList(40, 60).set(5, replacement);
+
+        assertSame(replacement, mProducts.get("replacement"));
+        assertNull(mProducts.get("sku45"));
+    }
+
+    @Test
+    public void setThroughNestedSubListIteratorUpdatesLookups() {
+        Product replacement = new Product("replacement", Product.Type.CONSUMABLE);
+
+        List<Product> view = mProducts.subList(10, 90).subList(10, 20);
+        ListIterator<Product> iterator = view.listIterator();
+        iterator.next();
+        iterator.set(replacement);
+
+        assertSame(replacement, mProducts.get("replacement"));
+        assertFalse(mProducts.contains("sku20"));
+    }
+}
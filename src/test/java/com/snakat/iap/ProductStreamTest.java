@@ -0,0 +1,89 @@
+package com.snakat.iap;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+
+import io.reactivex.functions.Consumer;
+import io.reactivex.observers.TestObserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that {@link ProductStream} emits immutable snapshots, in order, exactly once and never
+ * while a lock is held.
+ */
+public class ProductStreamTest {
+
+    private static final PurchaseRecord PURCHASED =
+            new PurchaseRecord("token", Product.PurchaseState.PURCHASED, true);
+
+    private ProductStream mStream;
+    private Product mProduct;
+
+    @Before
+    public void setUp() {
+        mStream = new ProductStream();
+        mProduct = new Product("premium", Product.Type.ONE_TIME);
+        mStream.publish(Collections.singletonList(mProduct));
+    }
+
+    @Test
+    public void subscribersRunOutsideTheLocks() {
+        Object lock = new Object();
+        Boolean[] locked = new Boolean[1];
+        mStream.observe("premium")
+                .skip(1)
+                .subscribe(new Consumer<Product>() {
+                    @Override
+                    public void accept(Product product) throws Exception {
+                        locked[0] = Thread.holdsLock(lock) || Thread.holdsLock(mStream);
+                        // Calling back into the stream must not deadlock.
+                        mStream.publish(Collections.singletonList(new Product("other", Product.Type.ONE_TIME)));
+                    }
+                });
+
+        synchronized (lock) {
+            mProduct.setPurchaseRecord(PURCHASED);
+            mStream.stage(Collections.singletonList(mProduct));
+        }
+        // Nothing runs until the flush.
+        assertNull(locked[0]);
+
+        mStream.flush();
+        assertEquals(Boolean.FALSE, locked[0]);
+    }
+
+    @Test
+    public void subscriberBetweenStageAndFlushSeesTheChangeOnce() {
+        mProduct.setPurchaseRecord(PURCHASED);
+        mStream.stage(Collections.singletonList(mProduct));
+
+        TestObserver<Product> observer = mStream.observe("premium").test();
+        mStream.flush();
+
+        observer.assertValueCount(1);
+        assertTrue(observer.values().get(0).isPurchased());
+    }
+
+    @Test
+    public void emitsSnapshotsThatLaterChangesDoNotTouch() {
+        TestObserver<ProductList> observer = mStream.observeProducts().test();
+
+        mProduct.setPurchaseRecord(PURCHASED);
+        mStream.publish(Collections.singletonList(mProduct));
+        mProduct.setPurchaseRecord(PurchaseRecord.NONE);
+
+        List<ProductList> values = observer.values();
+        assertEquals(2, values.size());
+        assertFalse(values.get(0).get("premium").isPurchased());
+        assertTrue(values.get(1).get("premium").isPurchased());
+        assertNotSame(mProduct, values.get(1).get("premium"));
+    }
+}
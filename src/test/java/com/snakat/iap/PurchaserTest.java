@@ -0,0 +1,181 @@
+package com.snakat.iap;
+
+import android.app.Activity;
+
+import com.android.billingclient.api.BillingClient;
+import com.android.billingclient.api.Purchase;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import io.reactivex.functions.Predicate;
+import io.reactivex.observers.TestObserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives Purchaser end to end on the JVM, through {@link JvmPlatform} and
+ * {@link FakeBillingBackend}.
+ */
+public class PurchaserTest {
+
+    private static final String PREMIUM = "premium";
+    private static final String COINS = "coins";
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private FakeBillingBackend mBackend;
+    private Purchaser mPurchaser;
+    private Activity mActivity;
+
+    @Before
+    public void setUp() {
+        mBackend = new FakeBillingBackend()
+                .addSkuDetails(PREMIUM, BillingClient.SkuType.INAPP, 4990000, "USD")
+                .addSkuDetails(COINS, BillingClient.SkuType.INAPP, 990000, "USD");
+
+        ProductList products = new ProductList();
+        products.add(new Product(PREMIUM, Product.Type.ONE_TIME));
+        products.add(new Product(COINS, Product.Type.CONSUMABLE));
+
+        mPurchaser = new JvmPlatform(mFolder.getRoot()).newPurchaser(products, mBackend.factory());
+        mActivity = new Activity();
+    }
+
+    @After
+    public void tearDown() {
+        mPurchaser.endConnection();
+    }
+
+    @Test
+    public void getProductsLoadsSkuDetails() {
+        ProductList products = mPurchaser.getProducts(PREMIUM, COINS).blockingGet();
+
+        assertEquals(2, products.size());
+        Product premium = products.get(PREMIUM);
+        assertNotNull(premium);
+        assertTrue(premium.isLoaded());
+        assertEquals(4990000, premium.getPriceAmount());
+        assertEquals("USD", premium.getCurrency());
+        assertFalse(premium.isPurchased());
+    }
+
+    @Test
+    public void getProductsRetriesTransientErrors() {
+        mBackend.failNext(IapMetrics.Operation.QUERY_SKU_DETAILS, BillingClient.BillingResponseCode.SERVICE_UNAVAILABLE);
+
+        ProductList products = mPurchaser.getProducts(PREMIUM).blockingGet();
+
+        assertTrue(products.get(PREMIUM).isLoaded());
+        assertEquals(2, mBackend.getCallCount(IapMetrics.Operation.QUERY_SKU_DETAILS));
+    }
+
+    @Test
+    public void purchaseAcknowledgesTheNewPurchase() {
+        Product premium = mPurchaser.purchase(mActivity, PREMIUM).blockingGet();
+
+        assertNotNull(premium);
+        assertTrue(premium.isPurchased());
+        assertTrue(premium.isAcknowledged());
+
+        List<Purchase> purchases = mBackend.getPurchases();
+        assertEquals(1, purchases.size());
+        assertTrue(purchases.get(0).isAcknowledged());
+    }
+
+    @Test
+    public void purchaseFailsWhenCanceled() {
+        mBackend.setPurchaseOutcome(BillingClient.BillingResponseCode.USER_CANCELED);
+
+        TestObserver<Product> observer = mPurchaser.purchase(mActivity, PREMIUM).test();
+
+        assertTrue(observer.awaitTerminalEvent(5, TimeUnit.SECONDS));
+        observer.assertError(new Predicate<Throwable>() {
+            @Override
+            public boolean test(Throwable throwable) throws Exception {
+                return throwable instanceof IapError && ((IapError) throwable).getCode() == IapError.Code.USER_CANCELED;
+            }
+        });
+        assertTrue(mBackend.getPurchases().isEmpty());
+    }
+
+    @Test
+    public void purchaseCompletedAfterItsFlowIsAcknowledged() throws Exception {
+        mBackend.setPendingPurchases(true);
+        // A pending purchase ends the flow without a product.
+        assertNull(mPurchaser.purchase(mActivity, PREMIUM).blockingGet());
+
+        mBackend.simulatePurchase(PREMIUM);
+
+        assertTrue("Purchase not acknowledged", awaitAcknowledged());
+        assertTrue(mPurchaser.getProducts(PREMIUM).blockingGet().get(PREMIUM).isPurchased());
+    }
+
+    @Test
+    public void unroutedPurchaseIsLeftToTheAppWhenDisabled() throws Exception {
+        mPurchaser.setAcknowledgeUnroutedPurchases(false);
+        mPurchaser.getProducts(PREMIUM).blockingGet();
+
+        mBackend.simulatePurchase(PREMIUM);
+
+        assertFalse(awaitAcknowledged());
+        assertEquals(0, mBackend.getCallCount(IapMetrics.Operation.ACKNOWLEDGE_PURCHASE));
+    }
+
+    @Test
+    public void consumeRemovesThePurchase() {
+        mPurchaser.purchase(mActivity, COINS).blockingGet();
+        mPurchaser.consume(COINS).blockingAwait();
+
+        assertTrue(mBackend.getPurchases().isEmpty());
+        assertFalse(mPurchaser.getProducts(COINS).blockingGet().get(COINS).isPurchased());
+    }
+
+    @Test
+    public void consumeWhoseResponseWasLostSucceedsOnRetry() {
+        mPurchaser.purchase(mActivity, COINS).blockingGet();
+        mBackend.loseNextResponse(IapMetrics.Operation.CONSUME, BillingClient.BillingResponseCode.SERVICE_TIMEOUT);
+
+        mPurchaser.consume(COINS).blockingAwait();
+
+        assertEquals(2, mBackend.getCallCount(IapMetrics.Operation.CONSUME));
+        assertTrue(mBackend.getPurchases().isEmpty());
+    }
+
+    @Test
+    public void restorePurchasesFindsPurchasesMadeElsewhere() {
+        mPurchaser.getProducts(Arrays.asList(PREMIUM, COINS)).blockingGet();
+        mBackend.simulatePurchase(PREMIUM);
+
+        Product premium = mPurchaser.restorePurchases().blockingGet();
+
+        assertNotNull(premium);
+        assertEquals(PREMIUM, premium.getSku());
+        assertTrue(premium.isPurchased());
+        assertTrue(premium.isAcknowledged());
+    }
+
+    private boolean awaitAcknowledged() throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+        while (System.nanoTime() < deadline) {
+            List<Purchase> purchases = mBackend.getPurchases();
+            if (purchases.size() == 1 && purchases.get(0).isAcknowledged()) {
+                return true;
+            }
+            Thread.sleep(10);
+        }
+        return false;
+    }
+}
@@ -0,0 +1,539 @@
+package com.snakat.iap;
+
+import android.app.Activity;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.android.billingclient.api.AcknowledgePurchaseResponseListener;
+import com.android.billingclient.api.BillingClient;
+import com.android.billingclient.api.BillingClientStateListener;
+import com.android.billingclient.api.BillingResult;
+import com.android.billingclient.api.ConsumeResponseListener;
+import com.android.billingclient.api.Purchase;
+import com.android.billingclient.api.PurchasesResponseListener;
+import com.android.billingclient.api.PurchasesUpdatedListener;
+import com.android.billingclient.api.SkuDetails;
+import com.android.billingclient.api.SkuDetailsResponseListener;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import io.reactivex.Scheduler;
+import io.reactivex.schedulers.Schedulers;
+
+/**
+ * In-memory billing backend for JVM tests, load tests and benchmarks. Latency and failures are drawn from a
+ * seeded random, so the same seed and call order always give the same run.
+ * <p>
+ * Every purchase flow succeeds after the configured latency unless {@link #setPurchaseOutcome(int)}
+ * says otherwise. Purchases made outside the app, refunds and disconnects are simulated with
+ * {@link #simulatePurchase(String)}, {@link #revokePurchase(String)} and {@link #disconnect()}.
+ */
+public final class FakeBillingBackend implements BillingBackend {
+
+    static final String PACKAGE_NAME = "com.snakat.iap.fake";
+
+    private final Scheduler mScheduler;
+    private final Random mRandom;
+
+    private final Map<String, SkuDetails> mSkuDetails = new ConcurrentHashMap<>();
+    private final Map<String, Purchase> mPurchases = new LinkedHashMap<>();
+    private final Map<IapMetrics.Operation, Queue<Integer>> mQueuedFailures = new EnumMap<>(IapMetrics.Operation.class);
+    private final Map<IapMetrics.Operation, Queue<Integer>> mLostResponses = new EnumMap<>(IapMetrics.Operation.class);
+    private final Map<IapMetrics.Operation, Failure> mFailureRates = Collections.synchronizedMap(new EnumMap<IapMetrics.Operation, Failure>(IapMetrics.Operation.class));
+    private final AtomicLongArray mCalls = new AtomicLongArray(IapMetrics.Operation.values().length);
+    private final AtomicLong mOrderCount = new AtomicLong();
+
+    private volatile PurchasesUpdatedListener mListener;
+    private volatile BillingClientStateListener mStateListener;
+    private volatile boolean mReady = false;
+
+    private volatile long mMinLatency = 0;
+    private volatile long mMaxLatency = 0;
+    private volatile int mPurchaseOutcome = BillingClient.BillingResponseCode.OK;
+    private volatile boolean mPendingPurchases = false;
+
+    public FakeBillingBackend() {
+        this(0, Schedulers.computation());
+    }
+
+    public FakeBillingBackend(long seed, @NonNull Scheduler scheduler) {
+        mRandom = new Random(seed);
+        mScheduler = scheduler;
+        for (IapMetrics.Operation operation : IapMetrics.Operation.values()) {
+            mQueuedFailures.put(operation, new ConcurrentLinkedQueue<Integer>());
+            mLostResponses.put(operation, new ConcurrentLinkedQueue<Integer>());
+        }
+    }
+
+    /**
+     * Returns a factory that hands out this backend, for {@link JvmPlatform#newPurchaser} or
+     * {@link JvmPlatform#createInstance}.
+     */
+    @NonNull
+    public Factory factory() {
+        return new Factory() {
+            @NonNull
+            @Override
+            public BillingBackend create(@NonNull PurchasesUpdatedListener listener) {
+                mListener = listener;
+                return FakeBillingBackend.this;
+            }
+        };
+    }
+
+    /**
+     * Delays every callback by the given latency. Zero answers on the calling thread.
+     */
+    @NonNull
+    public FakeBillingBackend setLatency(long latency, @NonNull TimeUnit unit) {
+        return setLatency(latency, latency, unit);
+    }
+
+    /**
+     * Delays every callback by a latency drawn uniformly between {@code min} and {@code max}.
+     */
+    @NonNull
+    public FakeBillingBackend setLatency(long min, long max, @NonNull TimeUnit unit) {
+        mMinLatency = Math.max(0, unit.toMillis(min));
+        mMaxLatency = Math.max(mMinLatency, unit.toMillis(max));
+        return this;
+    }
+
+    /**
+     * Fails the given fraction of calls to {@code operation} with {@code responseCode}.
+     */
+    @NonNull
+    public FakeBillingBackend setFailureRate(@NonNull IapMetrics.Operation operation, double rate, int responseCode) {
+        if (rate <= 0) {
+            mFailureRates.remove(operation);
+        } else {
+            mFailureRates.put(operation, new Failure(Math.min(1, rate), responseCode));
+        }
+        return this;
+    }
+
+    /**
+     * Fails the next call to {@code operation} with {@code responseCode}. Queued failures are
+     * used before the failure rate.
+     */
+    @NonNull
+    public FakeBillingBackend failNext(@NonNull IapMetrics.Operation operation, int responseCode) {
+        mQueuedFailures.get(operation).offer(responseCode);
+        return this;
+    }
+
+    /**
+     * Carries out the next acknowledge or consume but answers it with {@code responseCode}, as when
+     * Google Play applied the call and the response was lost on the way back.
+     */
+    @NonNull
+    public FakeBillingBackend loseNextResponse(@NonNull IapMetrics.Operation operation, int responseCode) {
+        mLostResponses.get(operation).offer(responseCode);
+        return this;
+    }
+
+    /**
+     * Sets the result of the purchase flows launched from now on, e.g. USER_CANCELED.
+     */
+    @NonNull
+    public FakeBillingBackend setPurchaseOutcome(int responseCode) {
+        mPurchaseOutcome = responseCode;
+        return this;
+    }
+
+    /**
+     * Makes new purchases pending until {@link #simulatePurchase(String)} completes them.
+     */
+    @NonNull
+    public FakeBillingBackend setPendingPurchases(boolean pending) {
+        mPendingPurchases = pending;
+        return this;
+    }
+
+    @NonNull
+    public FakeBillingBackend addSkuDetails(@NonNull List<SkuDetails> skuDetailsList) {
+        for (SkuDetails skuDetails : skuDetailsList) {
+            mSkuDetails.put(skuDetails.getSku(), skuDetails);
+        }
+        return this;
+    }
+
+    @NonNull
+    public FakeBillingBackend addSkuDetails(@NonNull String sku, @NonNull String skuType, long priceMicros, @NonNull String currencyCode) {
+        try {
+            JSONObject json = new JSONObject()
+                    .put("productId", sku)
+                    .put("type", skuType)
+                    .put("title", sku)
+                    .put("description", sku)
+                    .put("price", String.format(Locale.US, "%.2f %s", priceMicros / 1e6, currencyCode))
+                    .put("price_amount_micros", priceMicros)
+                    .put("price_currency_code", currencyCode);
+            SkuDetails skuDetails = new SkuDetails(json.toString());
+            mSkuDetails.put(sku, skuDetails);
+        } catch (JSONException e) {
+            throw new IllegalArgumentException(e);
+        }
+        return this;
+    }
+
+    /**
+     * Gives the user a purchase made outside the app, or completes a pending one, and reports it
+     * to the purchases listener.
+     */
+    @NonNull
+    public Purchase simulatePurchase(@NonNull String sku) {
+        Purchase purchase = null;
+        synchronized (mPurchases) {
+            for (Purchase owned : mPurchases.values()) {
+                if (owned.getSkus().contains(sku) && owned.getPurchaseState() == Purchase.PurchaseState.PENDING) {
+                    purchase = withField(owned, "purchaseState", 0);
+                    break;
+                }
+            }
+            if (purchase == null) {
+                removePurchases(sku);
+                purchase = newPurchase(sku, null, null, false);
+            }
+            mPurchases.put(purchase.getPurchaseToken(), purchase);
+        }
+        dispatchPurchasesUpdated(newResult(BillingClient.BillingResponseCode.OK), Collections.singletonList(purchase));
+        return purchase;
+    }
+
+    /**
+     * Takes the purchases of {@code sku} away, as a refund would. Nothing is reported until the
+     * next purchases query.
+     */
+    public void revokePurchase(@NonNull String sku) {
+        synchronized (mPurchases) {
+            removePurchases(sku);
+        }
+    }
+
+    /**
+     * Drops the connection the way Google Play does when its service goes away.
+     */
+    public void disconnect() {
+        mReady = false;
+        BillingClientStateListener listener = mStateListener;
+        if (listener != null) {
+            listener.onBillingServiceDisconnected();
+        }
+    }
+
+    @NonNull
+    public List<Purchase> getPurchases() {
+        synchronized (mPurchases) {
+            return new ArrayList<>(mPurchases.values());
+        }
+    }
+
+    public long getCallCount(@NonNull IapMetrics.Operation operation) {
+        return mCalls.get(operation.ordinal());
+    }
+
+    @Override
+    public boolean isReady() {
+        return mReady;
+    }
+
+    @Override
+    public void startConnection(@NonNull BillingClientStateListener listener) {
+        mStateListener = listener;
+        int responseCode = nextResponseCode(IapMetrics.Operation.START_CONNECTION);
+        deliver(new Runnable() {
+            @Override
+            public void run() {
+                mReady = responseCode == BillingClient.BillingResponseCode.OK;
+                listener.onBillingSetupFinished(newResult(responseCode));
+            }
+        });
+    }
+
+    @Override
+    public void endConnection() {
+        mReady = false;
+        mStateListener = null;
+    }
+
+    @Override
+    public void querySkuDetails(@NonNull String skuType, @NonNull List<String> skuList, @NonNull SkuDetailsResponseListener listener) {
+        int responseCode = nextResponseCode(IapMetrics.Operation.QUERY_SKU_DETAILS);
+        deliver(new Runnable() {
+            @Override
+            public void run() {
+                if (responseCode != BillingClient.BillingResponseCode.OK) {
+                    listener.onSkuDetailsResponse(newResult(responseCode), null);
+                    return;
+                }
+
+                List<SkuDetails> result = new ArrayList<>(skuList.size());
+                for (String sku : skuList) {
+                    SkuDetails skuDetails = mSkuDetails.get(sku);
+                    if (skuDetails != null && skuType.equals(skuDetails.getType())) {
+                        result.add(skuDetails);
+                    }
+                }
+                listener.onSkuDetailsResponse(newResult(responseCode), result);
+            }
+        });
+    }
+
+    @Override
+    public void queryPurchases(@NonNull String skuType, @NonNull PurchasesResponseListener listener) {
+        int responseCode = nextResponseCode(IapMetrics.Operation.QUERY_PURCHASES);
+        deliver(new Runnable() {
+            @Override
+            public void run() {
+                if (responseCode != BillingClient.BillingResponseCode.OK) {
+                    listener.onQueryPurchasesResponse(newResult(responseCode), Collections.<Purchase>emptyList());
+                    return;
+                }
+
+                List<Purchase> result = new ArrayList<>();
+                synchronized (mPurchases) {
+                    for (Purchase purchase : mPurchases.values()) {
+                        if (skuType.equals(getSkuType(purchase))) {
+                            result.add(purchase);
+                        }
+                    }
+                }
+                listener.onQueryPurchasesResponse(newResult(responseCode), result);
+            }
+        });
+    }
+
+    @NonNull
+    @Override
+    public BillingResult launchBillingFlow(@NonNull Activity activity, @NonNull SkuDetails skuDetails,
+                                           @Nullable String obfuscatedAccountId, @Nullable String obfuscatedProfileId) {
+        int responseCode = nextResponseCode(IapMetrics.Operation.LAUNCH_BILLING_FLOW);
+        if (responseCode != BillingClient.BillingResponseCode.OK) {
+            return newResult(responseCode);
+        }
+
+        int outcome = mPurchaseOutcome;
+        deliver(new Runnable() {
+            @Override
+            public void run() {
+                if (outcome != BillingClient.BillingResponseCode.OK) {
+                    dispatchPurchasesUpdated(newResult(outcome), null);
+                    return;
+                }
+
+                Purchase purchase;
+                synchronized (mPurchases) {
+                    if (isOwned(skuDetails.getSku())) {
+                        purchase = null;
+                    } else {
+                        purchase = newPurchase(skuDetails.getSku(), obfuscatedAccountId, obfuscatedProfileId, mPendingPurchases);
+                        mPurchases.put(purchase.getPurchaseToken(), purchase);
+                    }
+                }
+                if (purchase == null) {
+                    dispatchPurchasesUpdated(newResult(BillingClient.BillingResponseCode.ITEM_ALREADY_OWNED), null);
+                } else {
+                    dispatchPurchasesUpdated(newResult(BillingClient.BillingResponseCode.OK), Collections.singletonList(purchase));
+                }
+            }
+        });
+        return newResult(BillingClient.BillingResponseCode.OK);
+    }
+
+    @Override
+    public void acknowledgePurchase(@NonNull String purchaseToken, @NonNull AcknowledgePurchaseResponseListener listener) {
+        int responseCode = nextResponseCode(IapMetrics.Operation.ACKNOWLEDGE_PURCHASE);
+        Integer lostResponse = mLostResponses.get(IapMetrics.Operation.ACKNOWLEDGE_PURCHASE).poll();
+        deliver(new Runnable() {
+            @Override
+            public void run() {
+                int code = responseCode;
+                if (code == BillingClient.BillingResponseCode.OK) {
+                    synchronized (mPurchases) {
+                        Purchase purchase = mPurchases.get(purchaseToken);
+                        if (purchase == null || purchase.getPurchaseState() != Purchase.PurchaseState.PURCHASED) {
+                            code = BillingClient.BillingResponseCode.ITEM_NOT_OWNED;
+                        } else if (!purchase.isAcknowledged()) {
+                            mPurchases.put(purchaseToken, withField(purchase, "acknowledged", true));
+                        }
+                    }
+                }
+                if (lostResponse != null) {
+                    code = lostResponse;
+                }
+                listener.onAcknowledgePurchaseResponse(newResult(code));
+            }
+        });
+    }
+
+    @Override
+    public void consume(@NonNull String purchaseToken, @NonNull ConsumeResponseListener listener) {
+        int responseCode = nextResponseCode(IapMetrics.Operation.CONSUME);
+        Integer lostResponse = mLostResponses.get(IapMetrics.Operation.CONSUME).poll();
+        deliver(new Runnable() {
+            @Override
+            public void run() {
+                int code = responseCode;
+                if (code == BillingClient.BillingResponseCode.OK) {
+                    synchronized (mPurchases) {
+                        if (mPurchases.remove(purchaseToken) == null) {
+                            code = BillingClient.BillingResponseCode.ITEM_NOT_OWNED;
+                        }
+                    }
+                }
+                if (lostResponse != null) {
+                    code = lostResponse;
+                }
+                listener.onConsumeResponse(newResult(code), purchaseToken);
+            }
+        });
+    }
+
+    private int nextResponseCode(@NonNull IapMetrics.Operation operation) {
+        mCalls.incrementAndGet(operation.ordinal());
+
+        if (operation != IapMetrics.Operation.START_CONNECTION && !mReady) {
+            return BillingClient.BillingResponseCode.SERVICE_DISCONNECTED;
+        }
+
+        Integer queued = mQueuedFailures.get(operation).poll();
+        if (queued != null) {
+            return queued;
+        }
+
+        Failure failure = mFailureRates.get(operation);
+        if (failure != null) {
+            synchronized (mRandom) {
+                if (mRandom.nextDouble() < failure.mRate) {
+                    return failure.mResponseCode;
+                }
+            }
+        }
+        return BillingClient.BillingResponseCode.OK;
+    }
+
+    private void deliver(@NonNull Runnable runnable) {
+        long latency = mMinLatency;
+        long spread = mMaxLatency - latency;
+        if (spread > 0) {
+            synchronized (mRandom) {
+                latency += (long) (mRandom.nextDouble() * (spread + 1));
+            }
+        }
+
+        if (latency == 0) {
+            runnable.run();
+        } else {
+            mScheduler.scheduleDirect(runnable, latency, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void dispatchPurchasesUpdated(@NonNull BillingResult billingResult, @Nullable List<Purchase> purchases) {
+        PurchasesUpdatedListener listener = mListener;
+        if (listener != null) {
+            listener.onPurchasesUpdated(billingResult, purchases);
+        }
+    }
+
+    private boolean isOwned(@NonNull String sku) {
+        for (Purchase purchase : mPurchases.values()) {
+            if (purchase.getSkus().contains(sku)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void removePurchases(@NonNull String sku) {
+        Iterator<Purchase> iterator = mPurchases.values().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().getSkus().contains(sku)) {
+                iterator.remove();
+            }
+        }
+    }
+
+    @NonNull
+    private String getSkuType(@NonNull Purchase purchase) {
+        for (String sku : purchase.getSkus()) {
+            SkuDetails skuDetails = mSkuDetails.get(sku);
+            if (skuDetails != null) {
+                return skuDetails.getType();
+            }
+        }
+        return BillingClient.SkuType.INAPP;
+    }
+
+    @NonNull
+    private Purchase newPurchase(@NonNull String sku, @Nullable String obfuscatedAccountId, @Nullable String obfuscatedProfileId,
+                                 boolean pending) {
+        long order = mOrderCount.incrementAndGet();
+        try {
+            JSONObject json = new JSONObject()
+                    .put("orderId", String.format(Locale.US, "GPA.FAKE-%08d", order))
+                    .put("packageName", PACKAGE_NAME)
+                    .put("productId", sku)
+                    .put("purchaseTime", System.currentTimeMillis())
+                    .put("purchaseState", pending ? 4 : 0)
+                    .put("purchaseToken", String.format(Locale.US, "fake-token-%08d", order))
+                    .put("quantity", 1)
+                    .put("acknowledged", false);
+            if (obfuscatedAccountId != null) {
+                json.put("obfuscatedAccountId", obfuscatedAccountId);
+            }
+            if (obfuscatedProfileId != null) {
+                json.put("obfuscatedProfileId", obfuscatedProfileId);
+            }
+            return new Purchase(json.toString(), "");
+        } catch (JSONException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @NonNull
+    private static Purchase withField(@NonNull Purchase purchase, @NonNull String name, @NonNull Object value) {
+        try {
+            JSONObject json = new JSONObject(purchase.getOriginalJson()).put(name, value);
+            return new Purchase(json.toString(), purchase.getSignature());
+        } catch (JSONException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @NonNull
+    private static BillingResult newResult(int responseCode) {
+        return BillingResult.newBuilder()
+                .setResponseCode(responseCode)
+                .setDebugMessage("FakeBillingBackend")
+                .build();
+    }
+
+    private static final class Failure {
+        final double mRate;
+        final int mResponseCode;
+
+        Failure(double rate, int responseCode) {
+            mRate = rate;
+            mResponseCode = responseCode;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.snakat.iap;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.StringRes;
+
+import java.io.File;
+import java.util.Arrays;
+
+import io.reactivex.Scheduler;
+import io.reactivex.schedulers.Schedulers;
+
+/**
+ * Runs Purchaser on a plain JVM, without a Context: the caches live under a given directory, the
+ * purchase screen is "launched" on the calling thread and the device is never under pressure.
+ * <pre>
+ * FakeBillingBackend backend = new FakeBillingBackend();
+ * Purchaser purchaser = new JvmPlatform(temporaryFolder.getRoot()).newPurchaser(products, backend.factory());
+ * </pre>
+ */
+public final class JvmPlatform implements Platform {
+
+    private final File mCacheDir;
+    private final File mFilesDir;
+
+    public JvmPlatform(@NonNull File dir) {
+        mCacheDir = new File(dir, "cache");
+        mFilesDir = new File(dir, "files");
+        //noinspection ResultOfMethodCallIgnored
+        mCacheDir.mkdirs();
+        //noinspection ResultOfMethodCallIgnored
+        mFilesDir.mkdirs();
+    }
+
+    @NonNull
+    public Purchaser newPurchaser(@Nullable ProductList products, @NonNull BillingBackend.Factory backendFactory) {
+        return new Purchaser(this, products, false, backendFactory);
+    }
+
+    /**
+     * Like {@link #newPurchaser}, but installs the result as {@link Purchaser#getInstance()}, for
+     * code that goes through the singleton.
+     */
+    public void createInstance(@Nullable ProductList products, @NonNull BillingBackend.Factory backendFactory) {
+        Purchaser.createInstance(this, products, false, backendFactory);
+    }
+
+    @NonNull
+    @Override
+    public File getCacheDir() {
+        return mCacheDir;
+    }
+
+    @NonNull
+    @Override
+    public File getFilesDir() {
+        return mFilesDir;
+    }
+
+    /**
+     * Android resources are not available off-device, so messages name the resource instead.
+     */
+    @NonNull
+    @Override
+    public String getString(@StringRes int resId, Object... formatArgs) {
+        return "0x" + Integer.toHexString(resId) + " " + Arrays.toString(formatArgs);
+    }
+
+    @NonNull
+    @Override
+    public Scheduler getMainThread() {
+        return Schedulers.trampoline();
+    }
+
+    @Override
+    public boolean isUnderPressure() {
+        return false;
+    }
+
+    @Override
+    public void release() {
+    }
+}